@@ -0,0 +1,269 @@
+package SPW;
+
+/*
+ * #%L
+ * OME Bio-Formats package for reading and converting biological file formats.
+ * %%
+ * Copyright (C) 2005 - 2014 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import loci.formats.FormatException;
+import loci.formats.meta.IMetadata;
+
+/**
+ * Engine that hands planes to another engine on a dedicated thread, so
+ * export returns as soon as the plane has been copied into the queue.
+ * Plane buffers are recycled, and once the queue is full submitPlane blocks
+ * until the writer thread catches up. A failure on the writer thread is
+ * reported by the next call to submitPlane, flush or close, and a writer
+ * thread that has died is reported as an IOException rather than a hang.
+ */
+public class AsyncEngine implements WriterEngine {
+
+  /** Default no of planes that may be queued. */
+  public static final int DEFAULT_CAPACITY = 64;
+
+  /** How often a blocked caller checks that the writer thread is still running. */
+  private static final long POLL_MS = 100;
+
+  private final WriterEngine target;
+
+  private final BlockingQueue<Task> queue;
+
+  /** Buffers of written planes, available for reuse. */
+  private final BlockingQueue<byte[]> free;
+
+  private Thread thread = null;
+
+  private volatile Throwable failure = null;
+
+  /** A plane to write, or a marker to be acknowledged once all before it are written. */
+  private static class Task {
+    final int series;
+    final int index;
+    final byte[] plane;
+    final CountDownLatch done;
+    final boolean stop;
+
+    Task(int series, int index, byte[] plane, CountDownLatch done, boolean stop) {
+      this.series = series;
+      this.index = index;
+      this.plane = plane;
+      this.done = done;
+      this.stop = stop;
+    }
+  }
+
+  /**
+   * @param target  engine that stores the planes
+   * @param capacity  no of planes that may be queued
+   */
+  public AsyncEngine(WriterEngine target, int capacity) {
+    this.target = target;
+    queue = new ArrayBlockingQueue<>(capacity);
+    free = new ArrayBlockingQueue<>(capacity);
+  }
+
+  @Override
+  public void open(String outputFile, IMetadata meta) throws FormatException, IOException {
+    failure = null;
+    target.open(outputFile, meta);
+    thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          writeLoop();
+        }
+        catch (Throwable t) {
+          fail(t);
+        }
+      }
+    }, "AsyncEngine " + outputFile);
+    // an unclosed file is unreadable anyway, so do not keep the JVM alive for it
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  @Override
+  public boolean setCompanionFile(String companionFile) {
+    return target.setCompanionFile(companionFile);
+  }
+
+  @Override
+  public boolean storesMetadata() {
+    return target.storesMetadata();
+  }
+
+  /** The engine that stores the planes. */
+  public WriterEngine getTarget() {
+    return target;
+  }
+
+  /**
+   * Write queued planes until a stop marker is reached. After a failure the
+   * remaining planes are discarded, but the queue is still drained and every
+   * marker acknowledged so that no caller is left waiting.
+   */
+  private void writeLoop() {
+    while (true) {
+      Task task;
+      try {
+        task = queue.take();
+      }
+      catch (InterruptedException e) {
+        fail(e);
+        continue;
+      }
+      try {
+        if (task.plane != null && failure == null) {
+          target.submitPlane(task.series, task.index, task.plane);
+        }
+      }
+      catch (Throwable t) {
+        fail(t);
+      }
+      finally {
+        if (task.plane != null) {
+          free.offer(task.plane);
+        }
+        if (task.done != null) {
+          task.done.countDown();
+        }
+      }
+      if (task.stop) {
+        return;
+      }
+    }
+  }
+
+  /** Record the first failure on the writer thread. */
+  private void fail(Throwable t) {
+    if (failure == null) {
+      failure = t;
+    }
+  }
+
+  @Override
+  public void submitPlane(int series, int index, byte[] plane) throws FormatException, IOException {
+    checkFailure();
+    byte[] copy = free.poll();
+    if (copy == null || copy.length != plane.length) {
+      copy = new byte[plane.length];
+    }
+    System.arraycopy(plane, 0, copy, 0, plane.length);
+    put(new Task(series, index, copy, null, false));
+  }
+
+  @Override
+  public void flush() throws FormatException, IOException {
+    if (thread != null) {
+      await(false);
+    }
+    checkFailure();
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      if (thread != null) {
+        await(true);
+      }
+    }
+    finally {
+      // the target may only be closed once the writer thread has stopped using it
+      if (thread == null || !thread.isAlive()) {
+        thread = null;
+        free.clear();
+        target.close();
+      }
+    }
+    if (failure instanceof IOException) {
+      throw (IOException) failure;
+    }
+    if (failure != null) {
+      throw new IOException(failure);
+    }
+  }
+
+  /**
+   * Queue a marker and wait until the writer thread reaches it.
+   * @param stop  also stop the writer thread and wait for it to finish
+   */
+  private void await(boolean stop) throws IOException {
+    CountDownLatch done = new CountDownLatch(1);
+    put(new Task(0, 0, null, done, stop));
+    try {
+      while (!done.await(POLL_MS, TimeUnit.MILLISECONDS)) {
+        checkAlive();
+      }
+      if (stop) {
+        thread.join();
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting for planes to be written");
+    }
+  }
+
+  private void put(Task task) throws IOException {
+    if (thread == null) {
+      throw new IOException("AsyncEngine is not open");
+    }
+    try {
+      while (!queue.offer(task, POLL_MS, TimeUnit.MILLISECONDS)) {
+        checkAlive();
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted queueing plane");
+    }
+  }
+
+  /** Fail instead of waiting forever on a writer thread that has died. */
+  private void checkAlive() throws IOException {
+    if (!thread.isAlive()) {
+      throw new IOException("AsyncEngine writer thread has stopped", failure);
+    }
+  }
+
+  private void checkFailure() throws FormatException, IOException {
+    Throwable e = failure;
+    if (e instanceof FormatException) {
+      throw (FormatException) e;
+    }
+    if (e instanceof IOException) {
+      throw (IOException) e;
+    }
+    if (e != null) {
+      throw new IOException(e);
+    }
+  }
+
+}
@@ -0,0 +1,113 @@
+package SPW;
+
+/*
+ * #%L
+ * OME Bio-Formats package for reading and converting biological file formats.
+ * %%
+ * Copyright (C) 2005 - 2014 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+import java.io.File;
+import java.io.IOException;
+
+import loci.formats.FormatException;
+import loci.formats.ImageWriter;
+import loci.formats.in.DynamicMetadataOptions;
+import loci.formats.meta.IMetadata;
+import loci.formats.out.OMETiffWriter;
+
+/**
+ * Default engine, writing through a Bio-Formats ImageWriter so the format
+ * follows the file extension and the OME-XML is stored at close.
+ */
+public class BioFormatsEngine implements WriterEngine {
+
+  /** The file writer. */
+  private ImageWriter writer = null;
+
+  /** Companion metadata file, or null to store the OME-XML in the TIFF. */
+  private String companionFile;
+
+  public BioFormatsEngine() {
+    this(null);
+  }
+
+  /**
+   * @param companionFile  write the full OME-XML to this file and leave only
+   *   BinaryOnly metadata in the OME-TIFF. Requires Bio-Formats 6.0 or later.
+   */
+  public BioFormatsEngine(String companionFile) {
+    this.companionFile = companionFile;
+  }
+
+  /** Requires Bio-Formats 6.0 or later. */
+  @Override
+  public boolean setCompanionFile(String companionFile) {
+    this.companionFile = companionFile;
+    return true;
+  }
+
+  @Override
+  public boolean storesMetadata() {
+    return true;
+  }
+
+  @Override
+  public void open(String outputFile, IMetadata meta) throws FormatException, IOException {
+    // create the file writer and associate the OME-XML metadata with it
+    writer = new ImageWriter();
+    writer.setMetadataRetrieve(meta);
+
+    if (companionFile != null) {
+      File file = new File(companionFile);
+      if (file.exists())  {
+        file.delete();
+      }
+      DynamicMetadataOptions options = new DynamicMetadataOptions();
+      options.set(OMETiffWriter.COMPANION_KEY, companionFile);
+      writer.setMetadataOptions(options);
+    }
+
+    writer.setId(outputFile);
+  }
+
+  @Override
+  public void submitPlane(int series, int index, byte[] plane) throws FormatException, IOException {
+    if (series != writer.getSeries()) {
+      writer.setSeries(series);
+    }
+    writer.saveBytes(index, plane);
+  }
+
+  @Override
+  public void flush() {
+    // planes are written synchronously
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (writer != null) {
+      writer.close();
+      writer = null;
+    }
+  }
+
+}
@@ -0,0 +1,265 @@
+package SPW;
+
+/*
+ * #%L
+ * OME Bio-Formats package for reading and converting biological file formats.
+ * %%
+ * Copyright (C) 2005 - 2014 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+import loci.common.services.DependencyException;
+import loci.common.services.ServiceException;
+import loci.common.services.ServiceFactory;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.ImageReader;
+import loci.formats.ome.OMEXMLMetadata;
+import loci.formats.services.OMEXMLService;
+
+import ome.xml.model.MapPair;
+import ome.xml.model.primitives.NonNegativeInteger;
+
+/**
+ * Verifies an OME-TIFF written with checksums enabled against the CRC32C
+ * values stored in its metadata. Every plane is read once, in the order of
+ * its IFD in the file as given by the TiffData elements, so plates written
+ * with interleaved FOVs are still read in a single forward pass.
+ *
+ * Usage: java SPW.ChecksumVerifier file.ome.tif
+ */
+public class ChecksumVerifier {
+
+  private final String inputFile;
+
+  private int planesChecked = 0;
+
+  private int failures = 0;
+
+  public ChecksumVerifier(String inputFile) {
+    this.inputFile = inputFile;
+  }
+
+  /** A plane and where it is stored. */
+  private static class PlaneRef {
+    final String file;
+    final long ifd;
+    final int sequence;
+    final int series;
+    final int plane;
+
+    PlaneRef(String file, long ifd, int sequence, int series, int plane) {
+      this.file = file == null ? "" : file;
+      this.ifd = ifd;
+      this.sequence = sequence;
+      this.series = series;
+      this.plane = plane;
+    }
+  }
+
+  /**
+   * Read every plane and compare it with the stored checksums.
+   * @return true if all checksums matched and every Image carried checksums
+   */
+  public boolean verify() throws DependencyException, ServiceException,
+      FormatException, IOException {
+
+    ServiceFactory factory = new ServiceFactory();
+    OMEXMLService service = factory.getInstance(OMEXMLService.class);
+    OMEXMLMetadata meta = service.createOMEXMLMetadata();
+
+    ImageReader reader = new ImageReader();
+    reader.setMetadataStore(meta);
+    reader.setId(inputFile);
+
+    try {
+      int seriesCount = reader.getSeriesCount();
+      Map<String, Integer> annotations = findAnnotations(meta);
+      List<Map<String, Long>> expected = new ArrayList<>();
+      long[][] planes = new long[seriesCount][];
+      List<PlaneRef> order = new ArrayList<>();
+      for (int series = 0; series < seriesCount; series++) {
+        reader.setSeries(series);
+        expected.add(findChecksums(meta, annotations, series));
+        if (expected.get(series) == null) {
+          report(meta, series, "no checksums recorded");
+          continue;
+        }
+        planes[series] = Checksums.create(reader.getImageCount());
+        addPlanes(reader, meta, series, order);
+      }
+
+      // planes of interleaved plates are not stored Image by Image, so read them in file order
+      Collections.sort(order, new Comparator<PlaneRef>() {
+        @Override
+        public int compare(PlaneRef a, PlaneRef b) {
+          int byFile = a.file.compareTo(b.file);
+          if (byFile != 0) {
+            return byFile;
+          }
+          int byIFD = Long.compare(a.ifd, b.ifd);
+          return byIFD != 0 ? byIFD : Integer.compare(a.sequence, b.sequence);
+        }
+      });
+
+      CRC32C crc = new CRC32C();
+      byte[] buf = null;
+      for (PlaneRef ref : order) {
+        if (ref.series != reader.getSeries()) {
+          reader.setSeries(ref.series);
+        }
+        int planeSize = reader.getSizeX() * reader.getSizeY() * reader.getRGBChannelCount()
+            * FormatTools.getBytesPerPixel(reader.getPixelType());
+        if (buf == null || buf.length != planeSize) {
+          buf = new byte[planeSize];
+        }
+        reader.openBytes(ref.plane, buf);
+        long value = Checksums.plane(crc, buf);
+        planes[ref.series][ref.plane] = value;
+        planesChecked++;
+        Long stored = expected.get(ref.series).get(Checksums.PLANE_PREFIX + ref.plane);
+        if (stored == null) {
+          report(meta, ref.series, "no checksum for plane " + ref.plane);
+        }
+        else if (stored != value) {
+          report(meta, ref.series, "plane " + ref.plane + " expected " + Checksums.toHex(stored)
+              + " found " + Checksums.toHex(value));
+        }
+      }
+
+      for (int series = 0; series < seriesCount; series++) {
+        if (planes[series] == null) {
+          continue;
+        }
+        Long stored = expected.get(series).get(Checksums.IMAGE_KEY);
+        if (stored != null && stored != Checksums.image(planes[series])) {
+          report(meta, series, "Image checksum mismatch");
+        }
+      }
+    }
+    finally {
+      reader.close();
+    }
+    return failures == 0;
+  }
+
+  /**
+   * Add every plane of the current series, located through its TiffData elements.
+   * Planes without TiffData are placed after all others in plane order.
+   */
+  private void addPlanes(ImageReader reader, OMEXMLMetadata meta, int series,
+      List<PlaneRef> order) {
+    int imageCount = reader.getImageCount();
+    boolean[] found = new boolean[imageCount];
+    for (int td = 0; td < meta.getTiffDataCount(series); td++) {
+      long ifd = value(meta.getTiffDataIFD(series, td), 0);
+      int first = reader.getIndex((int) value(meta.getTiffDataFirstZ(series, td), 0),
+          (int) value(meta.getTiffDataFirstC(series, td), 0),
+          (int) value(meta.getTiffDataFirstT(series, td), 0));
+      // PlaneCount defaults to 1 when an IFD is given and to all planes otherwise
+      long defaultCount = meta.getTiffDataIFD(series, td) != null ? 1 : imageCount - first;
+      long count = value(meta.getTiffDataPlaneCount(series, td), defaultCount);
+      String file = meta.getUUIDFileName(series, td);
+      for (int k = 0; k < count && first + k < imageCount; k++) {
+        found[first + k] = true;
+        order.add(new PlaneRef(file, ifd + k, order.size(), series, first + k));
+      }
+    }
+    for (int p = 0; p < imageCount; p++) {
+      if (!found[p]) {
+        order.add(new PlaneRef(null, Long.MAX_VALUE, order.size(), series, p));
+      }
+    }
+  }
+
+  private static long value(NonNegativeInteger n, long defaultValue) {
+    return n == null ? defaultValue : n.getValue();
+  }
+
+  /**
+   * Index the checksum MapAnnotations.
+   * @return annotation index by ID
+   */
+  private static Map<String, Integer> findAnnotations(OMEXMLMetadata meta) {
+    Map<String, Integer> annotations = new HashMap<>();
+    for (int a = 0; a < meta.getMapAnnotationCount(); a++) {
+      if (Checksums.NAMESPACE.equals(meta.getMapAnnotationNamespace(a))) {
+        annotations.put(meta.getMapAnnotationID(a), a);
+      }
+    }
+    return annotations;
+  }
+
+  /**
+   * Find the checksum MapAnnotation linked to an Image.
+   * @param annotations  checksum annotations as returned by findAnnotations
+   * @return checksums by key, or null if the Image has none
+   */
+  private Map<String, Long> findChecksums(OMEXMLMetadata meta, Map<String, Integer> annotations,
+      int series) {
+    for (int r = 0; r < meta.getImageAnnotationRefCount(series); r++) {
+      Integer a = annotations.get(meta.getImageAnnotationRef(series, r));
+      if (a != null) {
+        Map<String, Long> checksums = new HashMap<>();
+        List<MapPair> pairs = meta.getMapAnnotationValue(a);
+        for (MapPair pair : pairs) {
+          checksums.put(pair.getName(), Checksums.fromHex(pair.getValue()));
+        }
+        return checksums;
+      }
+    }
+    return null;
+  }
+
+  private void report(OMEXMLMetadata meta, int series, String message) {
+    failures++;
+    System.err.println(meta.getImageName(series) + ": " + message);
+  }
+
+  public int getPlanesChecked() {
+    return planesChecked;
+  }
+
+  public int getFailures() {
+    return failures;
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length != 1) {
+      System.err.println("Usage: java SPW.ChecksumVerifier file.ome.tif");
+      System.exit(2);
+    }
+    ChecksumVerifier verifier = new ChecksumVerifier(args[0]);
+    boolean ok = verifier.verify();
+    System.out.println(verifier.getPlanesChecked() + " planes checked, "
+        + verifier.getFailures() + " failures");
+    System.exit(ok ? 0 : 1);
+  }
+
+}
@@ -0,0 +1,130 @@
+package SPW;
+
+/*
+ * #%L
+ * OME Bio-Formats package for reading and converting biological file formats.
+ * %%
+ * Copyright (C) 2005 - 2014 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+import ome.xml.model.MapPair;
+
+/**
+ * CRC32C plane checksums as stored in a MapAnnotation linked to each Image.
+ * Each written plane is recorded as "Plane:n" and, once every plane of the
+ * Image is present, the Image itself as "Image". The Image checksum is the
+ * CRC32C of the plane checksums, taken as 4 big-endian bytes each in plane order,
+ * so it does not depend on the order in which planes were written.
+ */
+public final class Checksums {
+
+  /** Namespace of the checksum MapAnnotations. */
+  public static final String NAMESPACE = "FileWriteSPW/checksum/CRC32C";
+
+  /** Key used for the Image checksum. */
+  public static final String IMAGE_KEY = "Image";
+
+  /** Prefix of the keys used for plane checksums. */
+  public static final String PLANE_PREFIX = "Plane:";
+
+  /** Value used in place of a checksum for planes that have not been written. */
+  public static final long NOT_WRITTEN = -1L;
+
+  private Checksums() {
+  }
+
+  /**
+   * Allocate checksum storage for an Image.
+   * @param sizePlanes no of planes in the Image
+   * @return array with every plane marked as NOT_WRITTEN
+   */
+  public static long[] create(int sizePlanes) {
+    long[] checksums = new long[sizePlanes];
+    Arrays.fill(checksums, NOT_WRITTEN);
+    return checksums;
+  }
+
+  /**
+   * CRC32C of a plane's bytes.
+   * @param crc  reusable checksum object
+   * @param plane  data as written to file
+   * @return checksum value
+   */
+  public static long plane(CRC32C crc, byte[] plane) {
+    crc.reset();
+    crc.update(plane, 0, plane.length);
+    return crc.getValue();
+  }
+
+  /**
+   * Combine plane checksums into the Image checksum.
+   * @param planes  plane checksums in plane order
+   * @return checksum value or NOT_WRITTEN if any plane is missing
+   */
+  public static long image(long[] planes) {
+    CRC32C crc = new CRC32C();
+    for (long value : planes) {
+      if (value == NOT_WRITTEN) {
+        return NOT_WRITTEN;
+      }
+      crc.update((int) (value >>> 24));
+      crc.update((int) (value >>> 16));
+      crc.update((int) (value >>> 8));
+      crc.update((int) value);
+    }
+    return crc.getValue();
+  }
+
+  /**
+   * Build the MapAnnotation contents for an Image.
+   * @param planes  plane checksums in plane order
+   * @return key/value pairs, plane checksums first
+   */
+  public static List<MapPair> toPairs(long[] planes) {
+    List<MapPair> pairs = new ArrayList<>();
+    for (int p = 0; p < planes.length; p++) {
+      if (planes[p] != NOT_WRITTEN) {
+        pairs.add(new MapPair(PLANE_PREFIX + p, toHex(planes[p])));
+      }
+    }
+    long image = image(planes);
+    if (image != NOT_WRITTEN) {
+      pairs.add(new MapPair(IMAGE_KEY, toHex(image)));
+    }
+    return pairs;
+  }
+
+  /** Format a checksum as 8 lower case hex digits. */
+  public static String toHex(long value) {
+    return String.format("%08x", value);
+  }
+
+  /** Parse a checksum written by toHex. */
+  public static long fromHex(String value) {
+    return Long.parseLong(value.trim(), 16);
+  }
+
+}
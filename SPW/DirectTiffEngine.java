@@ -0,0 +1,113 @@
+package SPW;
+
+/*
+ * #%L
+ * OME Bio-Formats package for reading and converting biological file formats.
+ * %%
+ * Copyright (C) 2005 - 2014 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import loci.formats.FormatException;
+import loci.formats.meta.IMetadata;
+import loci.formats.out.TiffWriter;
+
+/**
+ * Engine writing planes straight to a plain BigTIFF with loci.formats.out.TiffWriter.
+ * Planes are stored one IFD each in the order they are submitted, and no OME-XML
+ * is written, so the plate layout, pruning of unwritten Images, modulo and
+ * checksum annotations are not kept in the file. Instead the Image and plane of
+ * each IFD is recorded, and saved at close as a CSV file next to the TIFF.
+ * Useful to measure the cost of the OME layer, or where the metadata is
+ * archived separately.
+ */
+public class DirectTiffEngine implements WriterEngine {
+
+  /** The file writer. */
+  private TiffWriter writer = null;
+
+  /** File the plane order is saved to. */
+  private String planesFile = null;
+
+  /** Series and plane index stored in each IFD, in IFD order. */
+  private final List<int[]> planeOrder = new ArrayList<>();
+
+  /**
+   * Name of the file listing the plane stored in each IFD.
+   * @param outputFile  TIFF file
+   * @return outputFile with .planes.csv appended
+   */
+  public static String getPlanesFile(String outputFile) {
+    return outputFile + ".planes.csv";
+  }
+
+  @Override
+  public void open(String outputFile, IMetadata meta) throws FormatException, IOException {
+    planesFile = getPlanesFile(outputFile);
+    planeOrder.clear();
+    writer = new TiffWriter();
+    writer.setMetadataRetrieve(meta);
+    writer.setBigTiff(true);
+    writer.setId(outputFile);
+  }
+
+  @Override
+  public void submitPlane(int series, int index, byte[] plane) throws FormatException, IOException {
+    if (series != writer.getSeries()) {
+      writer.setSeries(series);
+    }
+    writer.saveBytes(index, plane);
+    planeOrder.add(new int[] {series, index});
+  }
+
+  /**
+   * Planes in the order they were stored.
+   * @return series and plane index of each IFD
+   */
+  public List<int[]> getPlaneOrder() {
+    return Collections.unmodifiableList(planeOrder);
+  }
+
+  @Override
+  public void flush() {
+    // planes are written synchronously
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (writer != null) {
+      writer.close();
+      writer = null;
+      try (PrintWriter out = new PrintWriter(planesFile, "UTF-8")) {
+        out.println("ifd,series,plane");
+        for (int ifd = 0; ifd < planeOrder.size(); ifd++) {
+          out.println(ifd + "," + planeOrder.get(ifd)[0] + "," + planeOrder.get(ifd)[1]);
+        }
+      }
+    }
+  }
+
+}
@@ -0,0 +1,408 @@
+package SPW;
+
+/*
+ * #%L
+ * OME Bio-Formats package for reading and converting biological file formats.
+ * %%
+ * Copyright (C) 2005 - 2014 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import loci.common.services.DependencyException;
+import loci.common.services.ServiceException;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.ImageReader;
+
+/**
+ * Conformance and performance checks run identically against every WriterEngine.
+ * Conformance writes a small plate through FileWriteSPW and a FLIM cube through
+ * FileWrite with planes submitted out of series order, then checks that every
+ * plane was stored, byte for byte and in plane order. Engines that write files
+ * are read back with Bio-Formats, others are checked through NullEngine's counts.
+ * A DirectTiffEngine file has no OME-XML, so its planes are matched using the
+ * plane order the engine recorded. Engines that store metadata are also
+ * checked for checksums verified by ChecksumVerifier after pruning, and for
+ * UINT8, FLOAT and DOUBLE planes, and for Z x C stacks.
+ * Performance then runs a LoadGenerator plate with each engine.
+ *
+ * Usage: java SPW.EngineSuite [dir=/tmp] [engines=null,async:null,bioformats,async:bioformats,tiff]
+ *   [LoadGenerator options for the performance run]
+ */
+public class EngineSuite {
+
+  private static final int WIDTH = 32;
+  private static final int HEIGHT = 16;
+  private static final int ROWS = 2;
+  private static final int COLS = 2;
+  private static final int FOV = 2;
+  private static final int GATES = 3;
+
+  private final String dir;
+
+  private final List<String> failures = new ArrayList<>();
+
+  public EngineSuite(String dir) {
+    this.dir = dir;
+  }
+
+  /**
+   * Check one engine.
+   * @param name  engine name as accepted by WriterEngine.create
+   * @return true if the engine conforms
+   */
+  public boolean conformance(String name) throws FormatException, IOException {
+    int before = failures.size();
+    checkPlate(name);
+    checkCube(name);
+    if (WriterEngine.create(name).storesMetadata()) {
+      checkChecksums(name);
+      checkPixelTypes(name);
+      checkStack(name);
+    }
+    return failures.size() == before;
+  }
+
+  /** Plate written gate by gate across all FOVs, so every plane switches series. */
+  private void checkPlate(String name) throws FormatException, IOException {
+    WriterEngine engine = WriterEngine.create(name);
+    String file = new File(dir, "engine_suite_plate" + WriterEngine.extension(engine)).getPath();
+    FileWriteSPW writer = new FileWriteSPW(file, "Engine suite plate");
+    writer.setEngine(engine);
+
+    int[][] nFov = new int[ROWS][COLS];
+    for (int[] row : nFov) {
+      Arrays.fill(row, FOV);
+    }
+    if (!writer.init(nFov, WIDTH, HEIGHT, delays())) {
+      fail(name, "plate failed to initialise");
+      return;
+    }
+    int nSeries = ROWS * COLS * FOV;
+    for (int t = 0; t < GATES; t++) {
+      for (int series = 0; series < nSeries; series++) {
+        writer.export(plane(series, t), series, t, "series " + series);
+      }
+    }
+    writer.cleanup();
+    check(name, "plate", engine, file, nSeries);
+    delete(file);
+  }
+
+  /** Single FLIM cube written in reverse plane order. */
+  private void checkCube(String name) throws FormatException, IOException {
+    WriterEngine engine = WriterEngine.create(name);
+    String file = new File(dir, "engine_suite_cube" + WriterEngine.extension(engine)).getPath();
+    FileWrite writer = new FileWrite(file, "Engine suite cube");
+    writer.setEngine(engine);
+    if (!writer.init(WIDTH, HEIGHT, GATES, delays())) {
+      fail(name, "cube failed to initialise");
+      return;
+    }
+    for (int t = GATES - 1; t >= 0; t--) {
+      writer.export(plane(0, t), 0, t);
+    }
+    writer.cleanup();
+    check(name, "cube", engine, file, 1);
+    delete(file);
+  }
+
+  /**
+   * Plate with checksums and one incomplete Image, which is pruned at close,
+   * verified with ChecksumVerifier.
+   */
+  private void checkChecksums(String name) throws FormatException, IOException {
+    WriterEngine engine = WriterEngine.create(name);
+    String file = new File(dir, "engine_suite_checksums" + WriterEngine.extension(engine)).getPath();
+    FileWriteSPW writer = new FileWriteSPW(file, "Engine suite checksums");
+    writer.setEngine(engine);
+    writer.setChecksums(true);
+    if (!writer.init(new int[][] {{1, 1}}, WIDTH, HEIGHT, delays())) {
+      fail(name, "checksum plate failed to initialise");
+      return;
+    }
+    for (int t = 0; t < GATES; t++) {
+      writer.export(plane(0, t), 0, t, "complete");
+    }
+    writer.export(plane(1, 0), 1, 0, "incomplete");
+    writer.cleanup();
+
+    ChecksumVerifier verifier = new ChecksumVerifier(file);
+    try {
+      if (!verifier.verify()) {
+        fail(name, "checksums failed verification");
+      }
+      if (verifier.getPlanesChecked() != GATES) {
+        fail(name, "checksums verified " + verifier.getPlanesChecked() + " planes, expected " + GATES);
+      }
+    }
+    catch (DependencyException | ServiceException e) {
+      fail(name, "checksums could not be verified: " + e.getMessage());
+    }
+    delete(file);
+  }
+
+  /** One plane each of UINT8, FLOAT and DOUBLE data, read back with their pixel type. */
+  private void checkPixelTypes(String name) throws FormatException, IOException {
+    int n = WIDTH * HEIGHT;
+    byte[] bytePlane = new byte[n];
+    float[] floatPlane = new float[n];
+    double[] doublePlane = new double[n];
+    for (int i = 0; i < n; i++) {
+      bytePlane[i] = (byte) i;
+      floatPlane[i] = i * 0.5f - 100;
+      doublePlane[i] = i * 0.25 - 100;
+    }
+    ByteBuffer floatBytes = ByteBuffer.allocate(n * 4);
+    floatBytes.asFloatBuffer().put(floatPlane);
+    ByteBuffer doubleBytes = ByteBuffer.allocate(n * 8);
+    doubleBytes.asDoubleBuffer().put(doublePlane);
+
+    int[] types = {FormatTools.UINT8, FormatTools.FLOAT, FormatTools.DOUBLE};
+    byte[][] expected = {bytePlane, floatBytes.array(), doubleBytes.array()};
+    for (int i = 0; i < types.length; i++) {
+      String type = FormatTools.getPixelTypeString(types[i]);
+      WriterEngine engine = WriterEngine.create(name);
+      String file = new File(dir, "engine_suite_" + type + WriterEngine.extension(engine)).getPath();
+      FileWrite writer = new FileWrite(file, "Engine suite " + type);
+      writer.setEngine(engine);
+      writer.setPixelType(types[i]);
+      if (!writer.init(WIDTH, HEIGHT)) {
+        fail(name, type + " failed to initialise");
+        continue;
+      }
+      switch (types[i]) {
+        case FormatTools.UINT8:
+          writer.export(bytePlane, 0, 0);
+          break;
+        case FormatTools.FLOAT:
+          writer.export(floatPlane, 0, 0);
+          break;
+        default:
+          writer.export(doublePlane, 0, 0);
+      }
+      writer.cleanup();
+
+      ImageReader reader = new ImageReader();
+      reader.setId(file);
+      try {
+        if (reader.getPixelType() != types[i]) {
+          fail(name, type + " read back as " + FormatTools.getPixelTypeString(reader.getPixelType()));
+        }
+        else if (!Arrays.equals(reader.openBytes(0, new byte[expected[i].length]), expected[i])) {
+          fail(name, type + " plane does not match");
+        }
+      }
+      finally {
+        reader.close();
+      }
+      delete(file);
+    }
+  }
+
+  /**
+   * Z x C stacks written with exportStack. The second FOV's stack has one plane
+   * of the wrong size, so nothing of it may be written and its Image is pruned.
+   */
+  private void checkStack(String name) throws FormatException, IOException {
+    int sizez = 2;
+    int sizec = 3;
+    WriterEngine engine = WriterEngine.create(name);
+    String file = new File(dir, "engine_suite_stack" + WriterEngine.extension(engine)).getPath();
+    FileWriteSPW writer = new FileWriteSPW(file, "Engine suite stack");
+    writer.setEngine(engine);
+    writer.setSizeZ(sizez);
+    writer.setSizeC(sizec);
+    if (!writer.init(new int[][] {{2}}, WIDTH, HEIGHT)) {
+      fail(name, "stack failed to initialise");
+      return;
+    }
+    short[][] planes = new short[writer.getPlaneCount()][];
+    for (int c = 0; c < sizec; c++) {
+      for (int z = 0; z < sizez; z++) {
+        planes[writer.getPlaneIndex(z, c, 0)] = plane(z, c);
+      }
+    }
+    writer.exportStack(planes, 0, "valid stack");
+    short[][] invalid = planes.clone();
+    invalid[invalid.length / 2] = new short[WIDTH];
+    writer.exportStack(invalid, 1, "invalid stack");
+    writer.cleanup();
+
+    ImageReader reader = new ImageReader();
+    reader.setId(file);
+    try {
+      if (reader.getSeriesCount() != 1) {
+        fail(name, "stack file has " + reader.getSeriesCount() + " Images, expected 1");
+      }
+      if (reader.getSizeZ() != sizez || reader.getSizeC() != sizec) {
+        fail(name, "stack read back as Z " + reader.getSizeZ() + " C " + reader.getSizeC());
+        return;
+      }
+      byte[] buf = new byte[WIDTH * HEIGHT * 2];
+      for (int c = 0; c < sizec; c++) {
+        for (int z = 0; z < sizez; z++) {
+          reader.openBytes(reader.getIndex(z, c, 0), buf);
+          if (!Arrays.equals(buf, bytes(plane(z, c)))) {
+            fail(name, "stack Z " + z + " C " + c + " does not match");
+          }
+        }
+      }
+    }
+    finally {
+      reader.close();
+      delete(file);
+    }
+  }
+
+  /** Compare what the engine stored with the planes that were exported. */
+  private void check(String name, String test, WriterEngine engine, String file, int nSeries)
+      throws FormatException, IOException {
+    int planeSize = WIDTH * HEIGHT * FormatTools.getBytesPerPixel(FormatTools.UINT16);
+
+    NullEngine counter = unwrap(engine, NullEngine.class);
+    if (counter != null) {
+      if (counter.getPlaneCount() != nSeries * GATES) {
+        fail(name, test + " stored " + counter.getPlaneCount() + " planes, expected " + nSeries * GATES);
+      }
+      if (counter.getByteCount() != (long) nSeries * GATES * planeSize) {
+        fail(name, test + " stored " + counter.getByteCount() + " bytes");
+      }
+      return;
+    }
+
+    // Images and planes are read back in order, unless the engine recorded the order it stored them in
+    DirectTiffEngine tiff = unwrap(engine, DirectTiffEngine.class);
+    List<int[]> order = tiff == null ? null : tiff.getPlaneOrder();
+    ImageReader reader = new ImageReader();
+    reader.setId(file);
+    try {
+      byte[] buf = new byte[planeSize];
+      int planes = 0;
+      for (int s = 0; s < reader.getSeriesCount(); s++) {
+        reader.setSeries(s);
+        for (int p = 0; p < reader.getImageCount(); p++, planes++) {
+          int series = order == null ? planes / GATES
+              : planes < order.size() ? order.get(planes)[0] : nSeries;
+          int t = order == null ? planes % GATES
+              : planes < order.size() ? order.get(planes)[1] : 0;
+          reader.openBytes(p, buf);
+          if (series >= nSeries || !Arrays.equals(buf, bytes(plane(series, t)))) {
+            fail(name, test + " series " + series + " plane " + t + " does not match");
+          }
+        }
+      }
+      if (planes != nSeries * GATES) {
+        fail(name, test + " read back " + planes + " planes, expected " + nSeries * GATES);
+      }
+    }
+    finally {
+      reader.close();
+    }
+  }
+
+  /** The engine of a given class at the end of a chain of engines, if there is one. */
+  private static <T extends WriterEngine> T unwrap(WriterEngine engine, Class<T> type) {
+    if (type.isInstance(engine)) {
+      return type.cast(engine);
+    }
+    if (engine instanceof AsyncEngine) {
+      return unwrap(((AsyncEngine) engine).getTarget(), type);
+    }
+    return null;
+  }
+
+  private static void delete(String file) {
+    new File(file).delete();
+    new File(DirectTiffEngine.getPlanesFile(file)).delete();
+  }
+
+  private static ArrayList<String> delays() {
+    ArrayList<String> delays = new ArrayList<>();
+    for (int t = 0; t < GATES; t++) {
+      delays.add(Integer.toString(t * 1000));
+    }
+    return delays;
+  }
+
+  /** Plane whose content identifies its series and gate. */
+  private static short[] plane(int series, int t) {
+    short[] plane = new short[WIDTH * HEIGHT];
+    for (int i = 0; i < plane.length; i++) {
+      plane[i] = (short) (series * 1000 + t * 100 + i % 100);
+    }
+    return plane;
+  }
+
+  private static byte[] bytes(short[] plane) {
+    byte[] bytes = new byte[plane.length * 2];
+    for (int i = 0; i < plane.length; i++) {
+      bytes[2 * i] = (byte) (plane[i] >> 8);
+      bytes[2 * i + 1] = (byte) plane[i];
+    }
+    return bytes;
+  }
+
+  private void fail(String name, String message) {
+    failures.add(name + ": " + message);
+    System.err.println(name + ": " + message);
+  }
+
+  public List<String> getFailures() {
+    return failures;
+  }
+
+  public static void main(String[] args) throws Exception {
+    Map<String, String> options = new HashMap<>();
+    for (String arg : args) {
+      int eq = arg.indexOf('=');
+      if (eq < 1) {
+        System.err.println("Arguments must be key=value, see SPW.EngineSuite for options");
+        System.exit(2);
+      }
+      options.put(arg.substring(0, eq), arg.substring(eq + 1));
+    }
+    String dir = options.containsKey("dir") ? options.get("dir") : System.getProperty("java.io.tmpdir");
+    String engines = options.containsKey("engines") ? options.remove("engines")
+        : "null,async:null,bioformats,async:bioformats,tiff";
+    if (!options.containsKey("plates")) {
+      options.put("plates", "1");
+    }
+
+    EngineSuite suite = new EngineSuite(dir);
+    for (String name : engines.split(",")) {
+      boolean ok = suite.conformance(name);
+      System.out.println(name + ": conformance " + (ok ? "passed" : "FAILED"));
+      options.put("engine", name);
+      new LoadGenerator(options).run();
+    }
+    System.exit(suite.getFailures().isEmpty() ? 0 : 1);
+  }
+
+}
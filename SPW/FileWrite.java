@@ -25,53 +25,23 @@ package SPW;
  * #L%
  */
 
-import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 
 import loci.common.services.DependencyException;
 import loci.common.services.ServiceException;
-import loci.common.services.ServiceFactory;
-import loci.formats.CoreMetadata;
 import loci.formats.FormatException;
-import loci.formats.FormatTools;
-import loci.formats.ImageWriter;
 import loci.formats.meta.IMetadata;
 import loci.formats.ome.OMEXMLMetadata;
-import loci.formats.services.OMEXMLService;
-import loci.formats.MetadataTools;
-import loci.common.DataTools;
-import ome.units.quantity.Time;
 
-import ome.xml.model.enums.DimensionOrder;
+import ome.xml.meta.OMEXMLMetadataRoot;
 import ome.xml.model.enums.EnumerationException;
-import ome.xml.model.enums.PixelType;
-import ome.xml.model.primitives.PositiveInteger;
-import ome.xml.model.primitives.NonNegativeInteger;
-import ome.xml.model.enums.NamingConvention;
 
 /**
  * Example class that shows how to export raw pixel data to OME-TIFF as a Plate using
  * Bio-Formats version 5.0.3 or later.
  */
-public class FileWrite {
-  
-  private final int pixelType = FormatTools.UINT16;
-  
-  private int width;
-  private int height;
-  private int sizet;
-  boolean initializationSuccess = false;
-  
-  private ArrayList<String> delays = null;
-  
-  private double[] exposureTimes = null;
-  
-  /** The file writer. */
-  private ImageWriter writer = null;
-
-  /** The name of the current output file. */
-  private final String outputFile;
+public class FileWrite extends FileWriteBase {
   
    /** Description of the plate. */
   private final String description;
@@ -84,15 +54,8 @@ public class FileWrite {
    * @param outputFile the file to which we will export
    */
   public FileWrite(String outputFile, String description) {
-    this.outputFile = outputFile;    
+    super(outputFile);
     this.description = description;
-    File file = new File(outputFile);
- 
-    // delete file if it exists
-    // NB deleting old files seems to be critical 
-    if (file.exists())  {
-      file.delete();
-    }
   }
   
   
@@ -113,13 +76,9 @@ public class FileWrite {
     this.height = sizeY;
     this.sizet = sizet;
     
-    Exception exception = null;
-    
     setupModulo(delays);
     
-    IMetadata omexml = initializeMetadata();
-    
-    initializationSuccess = initializeWriter(omexml);
+    initializationSuccess = initialize(initializeMetadata(), null);
     
     return initializationSuccess;
     
@@ -132,74 +91,52 @@ public class FileWrite {
     this.height = sizeY;
     this.sizet = 1;
     
-    Exception exception = null;
-    
-    IMetadata omexml = initializeMetadata();
-    
-    initializationSuccess = initializeWriter(omexml);
+    initializationSuccess = initialize(initializeMetadata(), null);
     
     return initializationSuccess;
     
   }
 
   /** Save a single byte plane of data.
+   * For UINT8 this is the pixel data itself, otherwise it must already be
+   * in big-endian byte order and is written without conversion.
    * @param plane  data
    * @param series  image no in plate
-   * @param index t plane within image*/
+   * @param index plane within image, see getPlaneIndex*/
   public void export(byte[] plane, int series, int index) {
-    
-    Exception exception = null;
-    
-    if (initializationSuccess) {
-      if (series != writer.getSeries())  {
-        try {
-          writer.setSeries(series);
-        } catch (FormatException e) {
-          exception = e;
-        }
-      }
-      savePlane( plane, index);
-    }   //endif 
+    savePlane(toBytes(plane), series, index);
   }
 
-  /** Save a single Short plane of data.
+  /** Save a single Short plane of UINT16 data.
    * @param plane  data
    * @param series  image no in plate
-   * @param index t plane within image*/
+   * @param index plane within image, see getPlaneIndex*/
   public void export(short[] plane, int series, int index) {
-    
-    byte[] planeb = DataTools.shortsToBytes(plane, false);
-    export(planeb, series, index);
-           
+    savePlane(toBytes(plane), series, index);
   }
-  
-  /**
-   * Set up the file writer.
-   *
-   * @param omexml the IMetadata object that is to be associated with the writer
-   * @return true if the file writer was successfully initialized; false if an
-   *   error occurred
-   */
-  private boolean initializeWriter(IMetadata omexml) {
-    // create the file writer and associate the OME-XML metadata with it
-    writer = new ImageWriter();
-    writer.setMetadataRetrieve(omexml);
 
-    Exception exception = null;
-    try {
-      writer.setId(outputFile);
-    }
-    catch (FormatException e) {
-      exception = e;
-    }
-    catch (IOException e) {
-      exception = e;
-    }
-    if (exception != null) {
-      System.err.println("Failed to initialize file writer.");
-      exception.printStackTrace();
-    }
-    return exception == null;
+  /** Save a single int plane of UINT32 data.
+   * @param plane  data
+   * @param series  image no in plate
+   * @param index plane within image, see getPlaneIndex*/
+  public void export(int[] plane, int series, int index) {
+    savePlane(toBytes(plane), series, index);
+  }
+
+  /** Save a single float plane of FLOAT data.
+   * @param plane  data
+   * @param series  image no in plate
+   * @param index plane within image, see getPlaneIndex*/
+  public void export(float[] plane, int series, int index) {
+    savePlane(toBytes(plane), series, index);
+  }
+
+  /** Save a single double plane of DOUBLE data.
+   * @param plane  data
+   * @param series  image no in plate
+   * @param index plane within image, see getPlaneIndex*/
+  public void export(double[] plane, int series, int index) {
+    savePlane(toBytes(plane), series, index);
   }
 
   /**
@@ -210,68 +147,13 @@ public class FileWrite {
     Exception exception = null;
     try {
       // create the OME-XML metadata storage object
-      ServiceFactory factory = new ServiceFactory();
-      OMEXMLService service = factory.getInstance(OMEXMLService.class);
-      OMEXMLMetadata meta = service.createOMEXMLMetadata();
-      //IMetadata meta = service.createOMEXMLMetadata();
-      meta.createRoot();
+      OMEXMLMetadata meta = createMetadata();
       
-      int plateIndex = 0;
       int series = 0;     // count of images One image only here!
-      int well = 0;
   
       meta.setImageDescription(description,0); 
    
-      PositiveInteger pwidth = new PositiveInteger(width);
-      PositiveInteger pheight = new PositiveInteger(height);
-      
-         // Create Image NB numberng in the Name goes from 1->n not 0-> n-1
-      String imageName = "Image:0";
-      String imageID = MetadataTools.createLSID("Image", 0);
-      meta.setImageID(imageID, series);
-      meta.setImageName(imageName, series);
-
-      String pixelsID = MetadataTools.createLSID("Pixels", 0);
-      meta.setPixelsID(pixelsID, series);
-
-            // specify that the pixel data is stored in big-endian format
-      // change 'TRUE' to 'FALSE' to specify little-endian format
-      meta.setPixelsBinDataBigEndian(Boolean.TRUE, series, 0);
-
-      // specify that the image is stored in ZCT order
-      meta.setPixelsDimensionOrder(DimensionOrder.XYZCT, series);
-
-      // specify the pixel type of the image
-      meta.setPixelsType(PixelType.fromString(FormatTools.getPixelTypeString(pixelType)), series);
-
-      // specify the dimensions of the image
-      meta.setPixelsSizeX(pwidth, series);
-      meta.setPixelsSizeY(pheight, series);
-      meta.setPixelsSizeZ(new PositiveInteger(1), series);
-      meta.setPixelsSizeC(new PositiveInteger(1), series);
-      meta.setPixelsSizeT(new PositiveInteger(sizet), series);
-
-      // define each channel and specify the number of samples in the channel
-      // the number of samples is 3 for RGB images and 1 otherwise
-      String channelID = MetadataTools.createLSID("Channel", 0);
-      meta.setChannelID(channelID, series, 0);
-      meta.setChannelSamplesPerPixel(new PositiveInteger(1), series, 0);
-
-      if (exposureTimes != null && exposureTimes.length == sizet) {
-        for (int t = 0; t < sizet; t++) {
-          meta.setPlaneTheT(new NonNegativeInteger(t), series, t);
-          meta.setPlaneTheC(new NonNegativeInteger(0), series, t);
-          meta.setPlaneTheZ(new NonNegativeInteger(0), series, t);
-          meta.setPlaneExposureTime(new Time(exposureTimes[t],ome.units.UNITS.S), series, t);
-        }
-      }
-
-      // add FLIM ModuloAlongT annotation if required 
-      if (delays != null) {
-        CoreMetadata modlo = createModuloAnn(meta);
-        service.addModuloAlong(meta, modlo, series);
-      }
-
+      setImageMetadata(meta, series, "Image:0", 0);
 
       //String dump = meta.dumpXML();
       //System.out.println("dump = ");
@@ -294,55 +176,20 @@ public class FileWrite {
     return null;    
       
   }
-  
-  
-  /**
-   * Setup delays.
-   */
-  private boolean setupModulo(ArrayList<String> delays) {
-    
-    boolean success = false;
-    if (delays.size() == sizet)  {
-      this.delays = delays;
-      success = true;
-    }
-    return success;
-  
-  }
-
-  
-   /**
-   * Add ModuloAlong annotation.
-   */
-  private CoreMetadata createModuloAnn(IMetadata meta) {
-
-    CoreMetadata modlo = new CoreMetadata();
-
-    modlo.moduloT.type = loci.formats.FormatTools.LIFETIME;
-    modlo.moduloT.unit = "ps";
-    modlo.moduloT.typeDescription = "Gated";
-
-    modlo.moduloT.labels = new String[sizet];
-
-    for (int i = 0; i < sizet; i++) {
-      //System.out.println(delays.get(i));
-      modlo.moduloT.labels[i] = delays.get(i);
-      
-    }
-
-    return modlo;
-  }
 
   /**
    * Save a plane of pixel data to the output file.
    *
-   
+   * @param plane  big-endian data, or null if it failed its checks
    */
-  private void savePlane(byte[] plane, int index) {
+  private void savePlane(byte[] plane, int series, int index) {
+    if (plane == null) {
+      return;
+    }
     
     Exception exception = null;
     try {
-      writer.saveBytes(index, plane);
+      submitPlane(plane, series, index);
     }
     catch (FormatException e) {
       exception = e;
@@ -355,18 +202,17 @@ public class FileWrite {
       exception.printStackTrace();
     }
   }
-
   
   /** Close the file writer. */
   public void cleanup() {
-    if (writer != null)  {
-      try {
-        writer.close();
-      }
-      catch (IOException e) {
-        System.err.println("Failed to close file writer.");
-      }
-    }
+    // all planes must be stored before the metadata is changed,
+    // and checksums are only recorded if every plane was
+    boolean flushed = flushEngine();
+    if (flushed && planeChecksums != null && omexml != null)  {
+      OMEXMLMetadataRoot root = (OMEXMLMetadataRoot) omexml.getRoot();
+      addChecksumAnnotation(root, root.getImage(0), 0);
+    }
+    closeEngine();
   }
   
 }
@@ -0,0 +1,556 @@
+package SPW;
+
+/*
+ * #%L
+ * OME Bio-Formats package for reading and converting biological file formats.
+ * %%
+ * Copyright (C) 2005 - 2014 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+import loci.common.services.DependencyException;
+import loci.common.services.ServiceException;
+import loci.common.services.ServiceFactory;
+import loci.formats.CoreMetadata;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.MetadataTools;
+import loci.formats.meta.IMetadata;
+import loci.formats.ome.OMEXMLMetadata;
+import loci.formats.services.OMEXMLService;
+import ome.units.quantity.Time;
+
+import ome.xml.meta.OMEXMLMetadataRoot;
+import ome.xml.model.Image;
+import ome.xml.model.MapAnnotation;
+import ome.xml.model.StructuredAnnotations;
+import ome.xml.model.enums.DimensionOrder;
+import ome.xml.model.enums.EnumerationException;
+import ome.xml.model.enums.PixelType;
+import ome.xml.model.primitives.NonNegativeInteger;
+import ome.xml.model.primitives.PositiveInteger;
+
+/**
+ * State and behaviour shared by FileWrite and FileWriteSPW: the pixel type
+ * and dimensions of each Image, conversion of typed planes to big-endian
+ * bytes, the per-Image Pixels, Channel and Plane metadata, the FLIM
+ * ModuloAlongT annotation, plane checksums and the WriterEngine planes are
+ * handed to.
+ */
+public abstract class FileWriteBase {
+  
+  protected int pixelType = FormatTools.UINT16;
+  
+  protected int width;
+  protected int height;
+  protected int sizet = 1;
+  protected int sizez = 1;
+  protected int sizec = 1;
+  boolean initializationSuccess = false;
+  
+  protected ArrayList<String> delays = null;
+  
+  protected double[] exposureTimes = null;
+  
+  /** The engine that stores planes, BioFormatsEngine unless set. */
+  protected WriterEngine engine = null;
+
+  /** The name of the current output file. */
+  protected final String outputFile;
+  
+  /** OME metadata **/
+  protected IMetadata omexml = null;
+  
+  /** OMEXML service **/
+  protected OMEXMLService service = null;
+  
+  /** Reusable big-endian buffer into which non-byte planes are converted. */
+  private ByteBuffer planeBuffer = null;
+  
+  /** Compute a CRC32C checksum for each plane as it is written. */
+  private boolean checksums = false;
+  
+  /** Plane checksums for each Image, indexed [series][plane], or null if disabled. **/
+  protected long[][] planeChecksums = null;
+  
+  /** Reusable checksum calculator. */
+  private final CRC32C crc = new CRC32C();
+  
+  /**
+   * @param outputFile the file to which we will export, deleted if it exists
+   */
+  protected FileWriteBase(String outputFile) {
+    this.outputFile = outputFile;
+    File file = new File(outputFile);
+ 
+    // delete file if it exists
+    // NB deleting old files seems to be critical 
+    if (file.exists())  {
+      file.delete();
+    }
+  }
+  
+  /**
+   * Select the pixel type. Must be called before init.
+   * @param pixelType one of FormatTools.UINT8, UINT16, UINT32, FLOAT or DOUBLE
+   * @return false if the pixel type is not supported
+   */
+  public boolean setPixelType(int pixelType) {
+    switch (pixelType) {
+      case FormatTools.UINT8:
+      case FormatTools.UINT16:
+      case FormatTools.UINT32:
+      case FormatTools.FLOAT:
+      case FormatTools.DOUBLE:
+        this.pixelType = pixelType;
+        return true;
+      default:
+        System.err.println("Unsupported pixel type " + pixelType);
+        return false;
+    }
+  }
+  
+  /**
+   * Set the no of Z sections in each Image. Must be called before init.
+   * @param sizez no of focal planes, 1 by default
+   * @return false if sizez is less than 1
+   */
+  public boolean setSizeZ(int sizez) {
+    if (sizez < 1) {
+      System.err.println("Invalid sizeZ " + sizez);
+      return false;
+    }
+    this.sizez = sizez;
+    return true;
+  }
+  
+  /**
+   * Set the no of channels in each Image. Must be called before init.
+   * @param sizec no of channels, 1 by default
+   * @return false if sizec is less than 1
+   */
+  public boolean setSizeC(int sizec) {
+    if (sizec < 1) {
+      System.err.println("Invalid sizeC " + sizec);
+      return false;
+    }
+    this.sizec = sizec;
+    return true;
+  }
+  
+  /**
+   * No of planes in each Image.
+   * @return sizeZ * sizeC * sizeT
+   */
+  public int getPlaneCount() {
+    return sizez * sizec * sizet;
+  }
+  
+  /**
+   * Index of a plane within an Image, as passed to export.
+   * Planes are stored in XYZCT order so Z varies fastest.
+   * @param z  focal plane
+   * @param c  channel
+   * @param t  time point or gate
+   * @return plane index
+   */
+  public int getPlaneIndex(int z, int c, int t) {
+    return z + sizez * (c + sizec * t);
+  }
+  
+  /**
+   * Enable per-plane CRC32C checksums. Must be called before init.
+   * Checksums are recorded in a MapAnnotation linked to each Image
+   * when the file is closed, see Checksums and ChecksumVerifier.
+   * init fails if the engine does not store metadata.
+   * @param checksums true to compute checksums
+   */
+  public void setChecksums(boolean checksums) {
+    this.checksums = checksums;
+  }
+  
+  /**
+   * Select the engine that stores the planes. Must be called before init.
+   * @param engine the engine to write with, BioFormatsEngine by default
+   */
+  public void setEngine(WriterEngine engine) {
+    this.engine = engine;
+  }
+  
+  /**
+   * Allocate per-plane state and open the engine.
+   * Must be called once the pixel type and dimensions are known.
+   * @param meta  metadata describing every Image, or null if it could not be populated
+   * @param companionFile  file to write the OME-XML to, or null to store it in the output file
+   * @return true if the writer is ready for planes
+   */
+  protected boolean initialize(IMetadata meta, String companionFile) {
+    omexml = meta;
+    if (meta == null) {
+      return false;
+    }
+    initializePlanes(meta.getImageCount());
+    return initializeWriter(companionFile);
+  }
+  
+  /**
+   * Allocate the plane buffer and, if enabled, checksum storage.
+   * @param nSeries  no of Images
+   */
+  private void initializePlanes(int nSeries) {
+    planeBuffer = ByteBuffer.allocate(width * height * FormatTools.getBytesPerPixel(pixelType));
+    planeChecksums = null;
+    if (checksums) {
+      planeChecksums = new long[nSeries][];
+      for (int i = 0; i < nSeries; i++) {
+        planeChecksums[i] = Checksums.create(getPlaneCount());
+      }
+    }
+  }
+  
+  /**
+   * Check a byte plane. For UINT8 this is the pixel data itself, otherwise it
+   * must already be in big-endian byte order and is written without conversion.
+   * @return the plane, or null if it cannot be written
+   */
+  protected byte[] toBytes(byte[] plane) {
+    return checkPlane(pixelType, plane.length) ? plane : null;
+  }
+  
+  /**
+   * Convert a UINT16 plane to big-endian bytes.
+   * @return the reused plane buffer, or null if the plane cannot be written
+   */
+  protected byte[] toBytes(short[] plane) {
+    if (!checkPlane(FormatTools.UINT16, plane.length * 2)) {
+      return null;
+    }
+    planeBuffer.clear();
+    planeBuffer.asShortBuffer().put(plane);
+    return planeBuffer.array();
+  }
+  
+  /**
+   * Convert a UINT32 plane to big-endian bytes.
+   * @return the reused plane buffer, or null if the plane cannot be written
+   */
+  protected byte[] toBytes(int[] plane) {
+    if (!checkPlane(FormatTools.UINT32, plane.length * 4)) {
+      return null;
+    }
+    planeBuffer.clear();
+    planeBuffer.asIntBuffer().put(plane);
+    return planeBuffer.array();
+  }
+  
+  /**
+   * Convert a FLOAT plane to big-endian bytes.
+   * @return the reused plane buffer, or null if the plane cannot be written
+   */
+  protected byte[] toBytes(float[] plane) {
+    if (!checkPlane(FormatTools.FLOAT, plane.length * 4)) {
+      return null;
+    }
+    planeBuffer.clear();
+    planeBuffer.asFloatBuffer().put(plane);
+    return planeBuffer.array();
+  }
+  
+  /**
+   * Convert a DOUBLE plane to big-endian bytes.
+   * @return the reused plane buffer, or null if the plane cannot be written
+   */
+  protected byte[] toBytes(double[] plane) {
+    if (!checkPlane(FormatTools.DOUBLE, plane.length * 8)) {
+      return null;
+    }
+    planeBuffer.clear();
+    planeBuffer.asDoubleBuffer().put(plane);
+    return planeBuffer.array();
+  }
+  
+  /**
+   * Convert a plane held in any of the supported array types.
+   * @return big-endian bytes, or null if the plane cannot be written
+   */
+  protected byte[] toBytes(Object plane) {
+    if (plane instanceof byte[]) {
+      return toBytes((byte[]) plane);
+    }
+    if (plane instanceof short[]) {
+      return toBytes((short[]) plane);
+    }
+    if (plane instanceof int[]) {
+      return toBytes((int[]) plane);
+    }
+    if (plane instanceof float[]) {
+      return toBytes((float[]) plane);
+    }
+    if (plane instanceof double[]) {
+      return toBytes((double[]) plane);
+    }
+    System.err.println("Unsupported plane " + plane);
+    return null;
+  }
+  
+  /**
+   * Check that a plane matches the initialised pixel type and size.
+   * @param type  pixel type implied by the array passed to export
+   * @param length  size of the plane in bytes
+   */
+  protected boolean checkPlane(int type, int length) {
+    if (!initializationSuccess) {
+      return false;
+    }
+    if (type != pixelType) {
+      System.err.println("Plane of type " + FormatTools.getPixelTypeString(type)
+          + " does not match pixel type " + FormatTools.getPixelTypeString(pixelType));
+      return false;
+    }
+    int planeSize = width * height * FormatTools.getBytesPerPixel(pixelType);
+    if (length != planeSize) {
+      System.err.println("Plane has " + length + " bytes, expected " + planeSize);
+      return false;
+    }
+    return true;
+  }
+  
+  /**
+   * Hand a plane to the engine and record its checksum.
+   * @param plane  big-endian data, may be reused once this returns
+   * @param series  image no
+   * @param index plane within image, see getPlaneIndex
+   */
+  protected void submitPlane(byte[] plane, int series, int index) throws FormatException, IOException {
+    engine.submitPlane(series, index, plane);
+    if (planeChecksums != null) {
+      planeChecksums[series][index] = Checksums.plane(crc, plane);
+    }
+  }
+  
+  /**
+   * Set up the file writer.
+   *
+   * @param companionFile  file to write the OME-XML to, or null to store it in the output file
+   * @return true if the file writer was successfully initialized; false if an
+   *   error occurred
+   */
+  private boolean initializeWriter(String companionFile) {
+    if (engine == null) {
+      engine = new BioFormatsEngine();
+    }
+    if (!engine.setCompanionFile(companionFile)) {
+      System.err.println("Companion-file mode is not supported by " + engine.getClass().getSimpleName());
+      return false;
+    }
+    if (checksums && !engine.storesMetadata()) {
+      System.err.println("Checksums are not supported by " + engine.getClass().getSimpleName()
+          + " as it does not store metadata");
+      return false;
+    }
+
+    Exception exception = null;
+    try {
+      engine.open(outputFile, omexml);
+    }
+    catch (FormatException | IOException e) {
+      exception = e;
+    }
+    if (exception != null) {
+      System.err.println("Failed to initialize file writer.");
+    }
+    return exception == null;
+  }
+  
+  /**
+   * Create an empty OME-XML metadata object, along with the service used to fill it.
+   */
+  protected OMEXMLMetadata createMetadata() throws DependencyException, ServiceException {
+    ServiceFactory factory = new ServiceFactory();
+    service = factory.getInstance(OMEXMLService.class);
+    OMEXMLMetadata meta = service.createOMEXMLMetadata();
+    meta.createRoot();
+    return meta;
+  }
+  
+  /**
+   * Describe one Image: its Pixels, a Channel for each c, a Plane for each
+   * plane if they carry Z, C or exposure time, and the FLIM ModuloAlongT annotation.
+   * @param meta  metadata to fill in
+   * @param series  image no
+   * @param imageName  name of the Image
+   * @param lsid  indices identifying the Image in its Image, Pixels and Channel LSIDs
+   */
+  protected void setImageMetadata(OMEXMLMetadata meta, int series, String imageName,
+      int... lsid) throws EnumerationException {
+    meta.setImageID(MetadataTools.createLSID("Image", lsid), series);
+    meta.setImageName(imageName, series);
+
+    meta.setPixelsID(MetadataTools.createLSID("Pixels", lsid), series);
+
+    // specify that the pixel data is stored in big-endian format
+    // change 'TRUE' to 'FALSE' to specify little-endian format
+    meta.setPixelsBigEndian(Boolean.TRUE, series);
+
+    // specify that the image is stored in ZCT order
+    meta.setPixelsDimensionOrder(DimensionOrder.XYZCT, series);
+
+    // specify the pixel type of the image
+    meta.setPixelsType(PixelType.fromString(FormatTools.getPixelTypeString(pixelType)), series);
+
+    // specify the dimensions of the image
+    meta.setPixelsSizeX(new PositiveInteger(width), series);
+    meta.setPixelsSizeY(new PositiveInteger(height), series);
+    meta.setPixelsSizeZ(new PositiveInteger(sizez), series);
+    meta.setPixelsSizeC(new PositiveInteger(sizec), series);
+    meta.setPixelsSizeT(new PositiveInteger(sizet), series);
+
+    // define each channel and specify the number of samples in the channel
+    // the number of samples is 3 for RGB images and 1 otherwise
+    int[] channelLSID = Arrays.copyOf(lsid, lsid.length + 1);
+    for (int c = 0; c < sizec; c++)  {
+      channelLSID[lsid.length] = c;
+      meta.setChannelID(MetadataTools.createLSID("Channel", channelLSID), series, c);
+      meta.setChannelSamplesPerPixel(new PositiveInteger(1), series, c);
+    }
+
+    boolean setExposure = exposureTimes != null && exposureTimes.length == sizet;
+    if (setExposure || sizez * sizec > 1)  {
+      for (int t = 0; t < sizet; t++)  {
+        for (int c = 0; c < sizec; c++)  {
+          for (int z = 0; z < sizez; z++)  {
+            int plane = getPlaneIndex(z, c, t);
+            meta.setPlaneTheT(new NonNegativeInteger(t), series, plane);
+            meta.setPlaneTheC(new NonNegativeInteger(c), series, plane);
+            meta.setPlaneTheZ(new NonNegativeInteger(z), series, plane);
+            if (setExposure)  {
+              meta.setPlaneExposureTime(new Time(exposureTimes[t],ome.units.UNITS.S), series, plane);
+            }
+          }
+        }
+      } 
+    }
+    
+    // add FLIM ModuloAlongT annotation if required 
+    if (delays != null)  {
+      CoreMetadata modlo = createModuloAnn(meta);
+      service.addModuloAlong(meta, modlo, series);
+    }
+  }
+  
+  /**
+   * Setup delays.
+   */
+  protected boolean setupModulo(ArrayList<String> delays) {
+    
+    boolean success = false;
+    if (delays.size() == sizet)  {
+      this.delays = delays;
+      success = true;
+    }
+    return success;
+  
+  }
+
+  
+   /**
+   * Add ModuloAlong annotation.
+   */
+  private CoreMetadata createModuloAnn(IMetadata meta) {
+
+    CoreMetadata modlo = new CoreMetadata();
+
+    modlo.moduloT.type = loci.formats.FormatTools.LIFETIME;
+    modlo.moduloT.unit = "ps";
+    modlo.moduloT.typeDescription = "Gated";
+
+    modlo.moduloT.labels = new String[sizet];
+
+    for (int i = 0; i < sizet; i++) {
+      //System.out.println(delays.get(i));
+      modlo.moduloT.labels[i] = delays.get(i);
+      
+    }
+
+    return modlo;
+  }
+  
+  /**
+   * Link a MapAnnotation holding the checksums of an Image to it.
+   * @param root  metadata model
+   * @param im  the Image
+   * @param series  image no the checksums were recorded under
+   */
+  protected void addChecksumAnnotation(OMEXMLMetadataRoot root, Image im, int series)  {
+    StructuredAnnotations anns = root.getStructuredAnnotations();
+    if (anns == null)  {
+      anns = new StructuredAnnotations();
+      root.setStructuredAnnotations(anns);
+    }
+    MapAnnotation ann = new MapAnnotation();
+    ann.setID(MetadataTools.createLSID("Annotation:CRC32C", series));
+    ann.setNamespace(Checksums.NAMESPACE);
+    ann.setValue(Checksums.toPairs(planeChecksums[series]));
+    anns.addMapAnnotation(ann);
+    im.linkAnnotation(ann);
+    ann.linkImage(im);
+  }
+  
+  /**
+   * Wait until the engine has stored every plane.
+   * @return false if a plane could not be stored
+   */
+  protected boolean flushEngine() {
+    if (engine != null)  {
+      try {
+        engine.flush();
+      }
+      catch (FormatException | IOException e) {
+        System.err.println("Failed to write data!");
+        return false;
+      }
+    }
+    return true;
+  }
+  
+  /**
+   * Store the final metadata and close the engine.
+   * @return false if the file could not be closed
+   */
+  protected boolean closeEngine() {
+    if (engine != null)  {
+      try {
+        engine.close();
+      }
+      catch (IOException e) {
+        System.err.println("Failed to close file writer.");
+        return false;
+      }
+    }
+    return true;
+  }
+  
+}
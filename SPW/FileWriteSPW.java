@@ -25,31 +25,31 @@ package SPW;
  * #L%
  */
 
-import java.io.File;
 import java.io.IOException;
+import java.lang.reflect.Array;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import loci.common.services.DependencyException;
 import loci.common.services.ServiceException;
-import loci.common.services.ServiceFactory;
-import loci.formats.CoreMetadata;
 import loci.formats.FormatException;
 import loci.formats.FormatTools;
-import loci.formats.ImageWriter;
 import loci.formats.meta.IMetadata;
 import loci.formats.ome.OMEXMLMetadata;
-import loci.formats.services.OMEXMLService;
 import loci.formats.MetadataTools;
-import loci.common.DataTools;
 
-import ome.xml.model.enums.DimensionOrder;
 import ome.xml.model.enums.EnumerationException;
-import ome.xml.model.enums.PixelType;
 import ome.xml.model.primitives.PositiveInteger;
 import ome.xml.model.primitives.NonNegativeInteger;
 import ome.xml.model.enums.NamingConvention;
-import ome.units.quantity.Time;
 import ome.xml.meta.OMEXMLMetadataRoot;
 import ome.xml.model.Image;
 import ome.xml.model.Plate;
@@ -62,38 +62,48 @@ import ome.xml.model.XMLAnnotation;
  * Example class that shows how to export raw pixel data to OME-TIFF as a Plate using
  * Bio-Formats version 5.0.3 or later.
  */
-public class FileWriteSPW {
+public class FileWriteSPW extends FileWriteBase {
   
-  private final int pixelType = FormatTools.UINT16;
   private int rows;
   private int cols;
-  private int width;
-  private int height;
-  private int sizet;
-  boolean initializationSuccess = false;
   
-  private ArrayList<String> delays = null;
+   /** Description of the plate. */
+  private final String plateDescription;
   
-  private double[] exposureTimes = null;
+  /** expected Images array. No of planes that have been written to each Image **/
+  private int[] expectedImages;
   
-  /** The file writer. */
-  private ImageWriter writer = null;
-
-  /** The name of the current output file. */
-  private final String outputFile;
+  /** Downsampling factor for the plate overview, 0 if none is kept. */
+  private int overviewBinning = 0;
   
-   /** Description of the plate. */
-  private final String plateDescription;
+  /** Plate overview updated as planes are written. */
+  private PlateOverview overview = null;
   
-  /** OME metadata **/
-  private IMetadata omexml = null;
+  /** Time the last close took in ns. */
+  private volatile long closeNanos = 0;
   
-  /** OMEXML service **/
-  private OMEXMLService service = null;
+  /** Write OME-XML to a companion file, leaving BinaryOnly metadata in the TIFF. */
+  private boolean companionMode = false;
   
-  /** expected Images array. No of planes that have been written to each Image **/
-  private int[] expectedImages;
+  /** 
+   * Single background thread used to finalize plates in the order they were closed.
+   * The thread is not a daemon so pending plates are always completed. It exits
+   * after one idle second, so the JVM stays up for at most a second after the
+   * last plate has been closed.
+   */
+  private static final ExecutorService finalizer = new ThreadPoolExecutor(0, 1,
+      1L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          return new Thread(r, "FileWriteSPW finalizer");
+        }
+      });
+  
+  /** No of plates that may be closing in the background at once, including the one being finalized. */
+  public static final int MAX_PENDING_PLATES = 2;
   
+  /** Permits for plates handed to the finalizer, so pending plates cannot fill the heap. */
+  private static final Semaphore pendingPlates = new Semaphore(MAX_PENDING_PLATES);
   
  
 
@@ -104,17 +114,60 @@ public class FileWriteSPW {
    * @param plateDescription
    */
   public FileWriteSPW(String outputFile, String plateDescription) {
-    this.outputFile = outputFile;    
+    super(outputFile);
     this.plateDescription = plateDescription;
-   
-    File file = new File(outputFile);
- 
-    // delete file if it exists
-    // NB deleting old files seems to be critical 
-    if (file.exists())  {
-      file.delete();
-    }
-    this.sizet = 1; // Non-FLIM by default
+  }
+  
+  /**
+   * Select companion-file mode. Must be called before init.
+   * When set the full plate metadata is written to a separate .companion.ome file
+   * and the OME-TIFF itself carries only a BinaryOnly reference to it,
+   * so closing the TIFF no longer serializes the whole plate into its comment.
+   * Requires Bio-Formats 6.0 or later, and an engine that supports
+   * setCompanionFile or init fails.
+   * @param companionMode true to write a companion file
+   */
+  public void setCompanionMode(boolean companionMode) {
+    this.companionMode = companionMode;
+  }
+  
+  /**
+   * Name of the companion metadata file used in companion-file mode.
+   * @return outputFile with its TIFF extension replaced by .companion.ome
+   */
+  public String getCompanionFile() {
+    return getBaseName() + ".companion.ome";
+  }
+  
+  /**
+   * Keep a downsampled overview of the whole plate. Must be called before init.
+   * The overview is updated from every plane passed to export, can be read
+   * with getOverview at any time and is saved alongside the plate at cleanup.
+   * @param binning downsampling factor in x and y, 0 to disable
+   */
+  public void setOverview(int binning) {
+    this.overviewBinning = binning;
+  }
+  
+  /**
+   * Plate overview, if one is being kept.
+   * @return the overview or null
+   */
+  public PlateOverview getOverview() {
+    return overview;
+  }
+  
+  /**
+   * Name of the overview image saved at cleanup.
+   * @return outputFile with its TIFF extension replaced by .overview.ome.tif
+   */
+  public String getOverviewFile() {
+    return getBaseName() + ".overview.ome.tif";
+  }
+  
+  /** outputFile without its TIFF extension. */
+  private String getBaseName() {
+    return outputFile.replaceFirst("(?i)(\\.ome)?\\.tiff?$", "");
   }
   
   // Initialisation method for FLIM including  exposure times.
@@ -147,9 +200,18 @@ public class FileWriteSPW {
     width = sizeX;
     height = sizeY;
     
-    omexml = initializeMetadata(nFov);
+    if (overviewBinning > 0) {
+      try {
+        overview = new PlateOverview(nFov, width, height, pixelType, overviewBinning);
+      }
+      catch (IllegalArgumentException e) {
+        System.err.println(e.getMessage());
+        initializationSuccess = false;
+        return initializationSuccess;
+      }
+    }
     
-    initializationSuccess = initializeWriter(omexml);
+    initializationSuccess = initialize(initializeMetadata(nFov), companionMode ? getCompanionFile() : null);
     
     return initializationSuccess;
     
@@ -157,38 +219,136 @@ public class FileWriteSPW {
 
   
 
-  /** Save a single Short plane of data.
+  /** Save a single byte plane of data.
+   * For UINT8 this is the pixel data itself, otherwise it must already be
+   * in big-endian byte order and is written without conversion.
+   * @param plane  data
+   * @param series  image no in plate
+   * @param index plane within image, see getPlaneIndex
+   * @param imageDescription*/
+  public void export(byte[] plane, int series, int index, String imageDescription) {
+    writePlane(toBytes(plane), series, index, imageDescription);
+  }
+
+  /** Save a single Short plane of UINT16 data.
    * @param plane  data
    * @param series  image no in plate
-   * @param index t plane within image
+   * @param index plane within image, see getPlaneIndex
    * @param imageDescription*/
   public void export(short[] plane, int series, int index, String imageDescription) {
+    writePlane(toBytes(plane), series, index, imageDescription);
+  }
+
+  /** Save a single int plane of UINT32 data.
+   * @param plane  data
+   * @param series  image no in plate
+   * @param index plane within image, see getPlaneIndex
+   * @param imageDescription*/
+  public void export(int[] plane, int series, int index, String imageDescription) {
+    writePlane(toBytes(plane), series, index, imageDescription);
+  }
+
+  /** Save a single float plane of FLOAT data.
+   * @param plane  data
+   * @param series  image no in plate
+   * @param index plane within image, see getPlaneIndex
+   * @param imageDescription*/
+  public void export(float[] plane, int series, int index, String imageDescription) {
+    writePlane(toBytes(plane), series, index, imageDescription);
+  }
+
+  /** Save a single double plane of DOUBLE data.
+   * @param plane  data
+   * @param series  image no in plate
+   * @param index plane within image, see getPlaneIndex
+   * @param imageDescription*/
+  public void export(double[] plane, int series, int index, String imageDescription) {
+    writePlane(toBytes(plane), series, index, imageDescription);
+  }
+  
+  /** Save a whole ZCT hyperstack of byte planes as one sequential series.
+   * Every plane is checked first, so an invalid stack leaves the Image unwritten.
+   * @param planes  data for every plane of the Image, in plane index order
+   * @param series  image no in plate
+   * @param imageDescription*/
+  public void exportStack(byte[][] planes, int series, String imageDescription) {
+    writeStack(planes, pixelType, 1, series, imageDescription);
+  }
+
+  /** Save a whole ZCT hyperstack of Short planes as one sequential series.
+   * Every plane is checked first, so an invalid stack leaves the Image unwritten.
+   * @param planes  data for every plane of the Image, in plane index order
+   * @param series  image no in plate
+   * @param imageDescription*/
+  public void exportStack(short[][] planes, int series, String imageDescription) {
+    writeStack(planes, FormatTools.UINT16, 2, series, imageDescription);
+  }
+
+  /** Save a whole ZCT hyperstack of int planes as one sequential series.
+   * Every plane is checked first, so an invalid stack leaves the Image unwritten.
+   * @param planes  data for every plane of the Image, in plane index order
+   * @param series  image no in plate
+   * @param imageDescription*/
+  public void exportStack(int[][] planes, int series, String imageDescription) {
+    writeStack(planes, FormatTools.UINT32, 4, series, imageDescription);
+  }
 
-    byte[] planeb;
-    planeb = DataTools.shortsToBytes(plane, false);
-    export(planeb, series, index, imageDescription);
+  /** Save a whole ZCT hyperstack of float planes as one sequential series.
+   * Every plane is checked first, so an invalid stack leaves the Image unwritten.
+   * @param planes  data for every plane of the Image, in plane index order
+   * @param series  image no in plate
+   * @param imageDescription*/
+  public void exportStack(float[][] planes, int series, String imageDescription) {
+    writeStack(planes, FormatTools.FLOAT, 4, series, imageDescription);
+  }
 
+  /** Save a whole ZCT hyperstack of double planes as one sequential series.
+   * Every plane is checked first, so an invalid stack leaves the Image unwritten.
+   * @param planes  data for every plane of the Image, in plane index order
+   * @param series  image no in plate
+   * @param imageDescription*/
+  public void exportStack(double[][] planes, int series, String imageDescription) {
+    writeStack(planes, FormatTools.DOUBLE, 8, series, imageDescription);
   }
   
+  /**
+   * Save every plane of an Image, or none of them if any plane is invalid.
+   * @param planes  typed arrays, one per plane in plane index order
+   * @param type  pixel type implied by the arrays
+   * @param bytesPerElement  size of one array element
+   * @param series  image no in plate
+   * @param imageDescription*/
+  private void writeStack(Object[] planes, int type, int bytesPerElement, int series,
+      String imageDescription) {
+    if (planes.length != getPlaneCount()) {
+      System.err.println("Stack has " + planes.length + " planes, expected " + getPlaneCount());
+      return;
+    }
+    for (Object plane : planes) {
+      if (plane == null || !checkPlane(type, Array.getLength(plane) * bytesPerElement)) {
+        return;
+      }
+    }
+    for (int p = 0; p < planes.length; p++) {
+      writePlane(toBytes(planes[p]), series, p, imageDescription);
+    }
+  }
   
-  /** Save a single byte plane of data.
+  /** Save a single plane of big-endian bytes.
    * @param plane  data
    * @param series  image no in plate
-   * @param index t plane within image*/
-  private void export(byte[] plane, int series, int index, String imageDescription) {
+   * @param index plane within image, see getPlaneIndex
+   * @param imageDescription*/
+  private void writePlane(byte[] plane, int series, int index, String imageDescription) {
 
     Exception exception = null;
 
-    if (initializationSuccess) {
-      if (series != writer.getSeries()) {
-        try {
-          writer.setSeries(series);
-        } catch (FormatException e) {
-          exception = e;
-        }
-      }
+    if (initializationSuccess && plane != null) {
       try {
-        writer.saveBytes(index, plane);
+        submitPlane(plane, series, index);
+        if (overview != null) {
+          overview.update(series, plane);
+        }
         if (index == 0) {
           OMEXMLMetadataRoot root = (OMEXMLMetadataRoot) omexml.getRoot();
           Plate plate = root.getPlate(0);
@@ -205,31 +365,6 @@ public class FileWriteSPW {
     }
   }
   
-  /**
-   * Set up the file writer.
-   *
-   * @param omexml the IMetadata object that is to be associated with the writer
-   * @return true if the file writer was successfully initialized; false if an
-   *   error occurred
-   */
-  private boolean initializeWriter(IMetadata omexml) {
-    // create the file writer and associate the OME-XML metadata with it
-    writer = new ImageWriter();
-    writer.setMetadataRetrieve(omexml);
-
-    Exception exception = null;
-    try {
-      writer.setId(outputFile);
-    }
-    catch (FormatException | IOException e) {
-      exception = e;
-    }
-    if (exception != null) {
-      System.err.println("Failed to initialize file writer.");
-    }
-    return exception == null;
-  }
-
   /**
    * Populate the minimum amount of metadata required to export a Plate.
    *
@@ -238,11 +373,7 @@ public class FileWriteSPW {
     Exception exception = null;
     try {
       // create the OME-XML metadata storage object
-      ServiceFactory factory = new ServiceFactory();
-      service = factory.getInstance(OMEXMLService.class);
-      OMEXMLMetadata meta = service.createOMEXMLMetadata();
-      //IMetadata meta = service.createOMEXMLMetadata();
-      meta.createRoot();
+      OMEXMLMetadata meta = createMetadata();
     
       int plateIndex = 0;
       int series = 0;     // count of images
@@ -258,9 +389,6 @@ public class FileWriteSPW {
       meta.setPlateColumns(new PositiveInteger(cols), 0);
       meta.setPlateName("First test Plate", 0);
       
-      PositiveInteger pwidth = new PositiveInteger(width);
-      PositiveInteger pheight = new PositiveInteger(height);
-        
       char rowChar = 'A';
       for (int row = 0; row  < rows; row++) {
         for (int column = 0; column < cols; column++) {
@@ -277,35 +405,8 @@ public class FileWriteSPW {
             
             // Create Image NB numberng in the Name goes from 1->n not 0-> n-1
             String imageName = rowChar + ":" + Integer.toString(column + 1) + ":FOV:" + Integer.toString(fov + 1);
-            String imageID = MetadataTools.createLSID("Image", well, fov);
-            meta.setImageID(imageID, series);
-            meta.setImageName(imageName, series);
-            
-            String pixelsID = MetadataTools.createLSID("Pixels", well, fov);
-            meta.setPixelsID(pixelsID, series);
-            
-            // specify that the pixel data is stored in big-endian format
-            // change 'TRUE' to 'FALSE' to specify little-endian format
-            meta.setPixelsBigEndian(Boolean.TRUE, series);
-
-            // specify that the image is stored in ZCT order
-            meta.setPixelsDimensionOrder(DimensionOrder.XYZCT, series);
-
-            // specify the pixel type of the image
-            meta.setPixelsType(PixelType.fromString(FormatTools.getPixelTypeString(pixelType)), series);
-
-            // specify the dimensions of the image
-            meta.setPixelsSizeX(pwidth, series);
-            meta.setPixelsSizeY(pheight, series);
-            meta.setPixelsSizeZ(new PositiveInteger(1), series);
-            meta.setPixelsSizeC(new PositiveInteger(1), series);
-            meta.setPixelsSizeT(new PositiveInteger(sizet), series);
-
-            // define each channel and specify the number of samples in the channel
-            // the number of samples is 3 for RGB images and 1 otherwise
-            String channelID = MetadataTools.createLSID("Channel",well, fov);
-            meta.setChannelID(channelID, series,0 );
-            meta.setChannelSamplesPerPixel(new PositiveInteger(1), series, 0);
+            setImageMetadata(meta, series, imageName, well, fov);
+            String imageID = meta.getImageID(series);
            
             // set sample
             String wellSampleID = MetadataTools.createLSID("WellSample",well, fov);
@@ -313,22 +414,7 @@ public class FileWriteSPW {
             // NB sampleIndex here == series ie the image No
             meta.setWellSampleIndex(new NonNegativeInteger(series), 0, well, fov);
             meta.setWellSampleImageRef(imageID, 0, well, fov);
-             
-            if (exposureTimes != null && exposureTimes.length == sizet)  {
-              for (int t = 0; t < sizet; t++)  {
-                meta.setPlaneTheT(new NonNegativeInteger(t), series, t);
-                meta.setPlaneTheC(new NonNegativeInteger(0), series, t);
-                meta.setPlaneTheZ(new NonNegativeInteger(0), series, t);
-                meta.setPlaneExposureTime(new Time(exposureTimes[t],ome.units.UNITS.S), series, t);
-              } 
-            }
-            
-            // add FLIM ModuloAlongT annotation if required 
-            if (delays != null)  {
-              CoreMetadata modlo = createModuloAnn(meta);
-              service.addModuloAlong(meta, modlo, series);
-            }
-            
+
             series++;
           }  //end of samples  
           well++;
@@ -355,58 +441,90 @@ public class FileWriteSPW {
   
   
   /**
-   * Setup delays.
+   * Link a checksum MapAnnotation to each valid Image.
+   * Must be called after invalid Images have been removed.
    */
-  private boolean setupModulo(ArrayList<String> delays) {
-    
-    boolean success = false;
-    if (delays.size() == sizet)  {
-      this.delays = delays;
-      success = true;
+  private void addChecksumAnnotations(OMEXMLMetadataRoot root, List<Integer> validSeries)  {
+    // valid Images keep their relative order so the n-th remaining Image is validSeries[n]
+    for (int i = 0; i < validSeries.size(); i++)  {
+      addChecksumAnnotation(root, root.getImage(i), validSeries.get(i));
     }
-    return success;
+  }
   
+  /** Close the file writer. */
+  public void cleanup() {
+    finish();
   }
-
   
-   /**
-   * Add ModuloAlong annotation.
+  /**
+   * Close the file writer on a background thread.
+   * Pruning of invalid images and serialization of the OME-XML happen after
+   * this method returns, so the caller can start the next plate immediately.
+   * This object must not be used again once this has been called.
+   * Each pending plate keeps its metadata, checksums and overview in memory, so
+   * if MAX_PENDING_PLATES are already closing this blocks until one has finished.
+   * @return Future that yields true once the plate has been closed successfully
    */
-  private CoreMetadata createModuloAnn(IMetadata meta) {
-
-    CoreMetadata modlo = new CoreMetadata();
-
-    modlo.moduloT.type = loci.formats.FormatTools.LIFETIME;
-    modlo.moduloT.unit = "ps";
-    modlo.moduloT.typeDescription = "Gated";
-
-    modlo.moduloT.labels = new String[sizet];
-
-    for (int i = 0; i < sizet; i++) {
-      //System.out.println(delays.get(i));
-      modlo.moduloT.labels[i] = delays.get(i);
-      
+  public Future<Boolean> cleanupInBackground() {
+    pendingPlates.acquireUninterruptibly();
+    try {
+      return finalizer.submit(new Callable<Boolean>() {
+        @Override
+        public Boolean call() {
+          try {
+            return finish();
+          }
+          finally {
+            pendingPlates.release();
+          }
+        }
+      });
+    }
+    catch (RuntimeException e) {
+      pendingPlates.release();
+      throw e;
     }
-
-    return modlo;
   }
-
   
+  /**
+   * Time taken to close the plate, including pruning and writing the metadata.
+   * With cleanupInBackground this is the time spent on the finalizer thread.
+   * @return time in ns, valid once cleanup has returned or its Future has completed
+   */
+  public long getCloseTime() {
+    return closeNanos;
+  }
   
-  /** Close the file writer. */
-  public void cleanup() {
+  /** Remove invalid Images from the metadata and close the file writer. */
+  private boolean finish() {
+    long start = System.nanoTime();
+    try {
+      return finishPlate();
+    }
+    finally {
+      closeNanos = System.nanoTime() - start;
+    }
+  }
+  
+  /** Remove invalid Images from the metadata and close the file writer. */
+  private boolean finishPlate() {
     
-    int validPlanes = 1;  // No of planes expected for each image = 1 if not FLIM
-    if (delays != null)  {
-      validPlanes = sizet; 
+    // all planes must be stored before Images are removed from the metadata,
+    // and after a failed write the plate is only closed, not annotated
+    if (!flushEngine())  {
+      closeEngine();
+      return false;
     }
     
+    int validPlanes = getPlaneCount();  // No of planes expected for each image
+    
     OMEXMLMetadataRoot root = (OMEXMLMetadataRoot) omexml.getRoot();
     
      Plate plate = root.getPlate(0);
      StructuredAnnotations anns = root.getStructuredAnnotations();
      
      ArrayList<Image> invalidImages = new ArrayList<>();
+     ArrayList<Integer> validSeries = new ArrayList<>();
     
     // Check that all expected Images have received the correct no of timepoints.
     // if not record those images as being invalid
@@ -419,7 +537,10 @@ public class FileWriteSPW {
           XMLAnnotation ann = (XMLAnnotation) im.getLinkedAnnotation(0);
           anns.removeXMLAnnotation(ann);
         }
-      }      
+      }
+      else  {
+        validSeries.add(i);
+      }
     }
     
   
@@ -435,16 +556,22 @@ public class FileWriteSPW {
       root.removeImage(im);
     }
     
- 
-  
-    if (writer != null)  {
+    if (planeChecksums != null)  {
+      addChecksumAnnotations(root, validSeries);
+    }
+    
+    boolean closed = closeEngine();
+    
+    // the overview is optional, so a failure to save it must not stop the plate being closed
+    if (overview != null)  {
       try {
-        writer.close();
+        overview.save(getOverviewFile());
       }
-      catch (IOException e) {
-        System.err.println("Failed to close file writer.");
+      catch (RuntimeException | OutOfMemoryError e) {
+        System.err.println("Failed to save plate overview.");
       }
     }
+    return closed;
   }
   
 }
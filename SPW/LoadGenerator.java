@@ -0,0 +1,656 @@
+package SPW;
+
+/*
+ * #%L
+ * OME Bio-Formats package for reading and converting biological file formats.
+ * %%
+ * Copyright (C) 2005 - 2014 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import loci.formats.FormatTools;
+
+/**
+ * Synthetic acquisition load generator and soak test for FileWriteSPW and FileWrite.
+ * Drives the writers like an instrument would, with no camera attached, and
+ * reports sustained throughput, export latency percentiles, heap in use after GC,
+ * and close times for each plate and for the whole run. close_ms is the time the
+ * acquisition spends in the close call, wait_ms the time it is blocked on the
+ * previous plate still finalizing in the background, and finalize_ms the time
+ * the close itself takes. With background=true a plate is reported once its
+ * close has finished.
+ *
+ * Usage: java SPW.LoadGenerator [key=value ...]
+ *
+ *   dir=/tmp             output directory, e.g. a tmpfs mount
+ *   writer=spw           spw (one plate per file) or single (FileWrite, one file per FOV)
+ *   rows=8 cols=12       plate geometry
+ *   fov=4                FOVs per well
+ *   width=512 height=512 frame size
+ *   gates=1              no of time gates, 1 for non-FLIM
+ *   z=1 c=1              no of focal planes and channels in each FOV
+ *   delayStep=1000       gate delay increment in ps
+ *   exposure=0.01        exposure time per gate in s
+ *   pixelType=uint16     uint8, uint16, uint32, float or double
+ *   fps=0                target frame rate, 0 for as fast as possible
+ *   pattern=sequential   sequential, gate (planes interleaved across the FOVs of a well)
+ *                        or random (FOVs in random order)
+ *   drop=0.0             fraction of FOVs that are abandoned part way through
+ *   minutes=1            run time; plates are written until it has elapsed
+ *   plates=0             stop after this many plates, 0 for no limit
+ *   background=false     close plates with cleanupInBackground
+ *   companion=false      companion-file mode
+ *   checksums=false      per-plane CRC32C checksums
+ *   overview=0           plate overview binning, 0 for none
+ *   engine=bioformats    writer engine, see WriterEngine.create
+ *   keep=false           keep output files rather than deleting each after close
+ *   seed=1               random seed for drops and ordering
+ */
+public class LoadGenerator {
+
+  private final Map<String, String> options;
+
+  private final String dir;
+  private final String writerType;
+  private final int rows;
+  private final int cols;
+  private final int fov;
+  private final int width;
+  private final int height;
+  private final int gates;
+  private final int sizez;
+  private final int sizec;
+  private final int delayStep;
+  private final double exposure;
+  private final int pixelType;
+  private final double fps;
+  private final String pattern;
+  private final double drop;
+  private final long durationNanos;
+  private final int maxPlates;
+  private final boolean background;
+  private final boolean companion;
+  private final boolean checksums;
+  private final int overview;
+  private final String engine;
+
+  /** Output file extension for the engine. */
+  private final String extension;
+  private final boolean keep;
+  private final Random random;
+
+  /** One plane of each pixel type, filled with noise. */
+  private Object plane;
+
+  /** Image description for each series, built up front so exports allocate nothing. */
+  private String[] descriptions;
+
+  private long nextFrame = 0;
+
+  private final LatencyHistogram runLatency = new LatencyHistogram();
+
+  public LoadGenerator(Map<String, String> options) {
+    this.options = options;
+    dir = get("dir", System.getProperty("java.io.tmpdir"));
+    writerType = get("writer", "spw");
+    rows = Integer.parseInt(get("rows", "8"));
+    cols = Integer.parseInt(get("cols", "12"));
+    fov = Integer.parseInt(get("fov", "4"));
+    width = Integer.parseInt(get("width", "512"));
+    height = Integer.parseInt(get("height", "512"));
+    gates = Integer.parseInt(get("gates", "1"));
+    sizez = Integer.parseInt(get("z", "1"));
+    sizec = Integer.parseInt(get("c", "1"));
+    if (sizez < 1 || sizec < 1) {
+      throw new IllegalArgumentException("z and c must be at least 1");
+    }
+    delayStep = Integer.parseInt(get("delayStep", "1000"));
+    exposure = Double.parseDouble(get("exposure", "0.01"));
+    pixelType = FormatTools.pixelTypeFromString(get("pixelType", "uint16"));
+    fps = Double.parseDouble(get("fps", "0"));
+    pattern = get("pattern", "sequential");
+    drop = Double.parseDouble(get("drop", "0.0"));
+    durationNanos = (long) (Double.parseDouble(get("minutes", "1")) * 60e9);
+    maxPlates = Integer.parseInt(get("plates", "0"));
+    background = Boolean.parseBoolean(get("background", "false"));
+    companion = Boolean.parseBoolean(get("companion", "false"));
+    checksums = Boolean.parseBoolean(get("checksums", "false"));
+    overview = Integer.parseInt(get("overview", "0"));
+    engine = get("engine", "bioformats");
+    WriterEngine check = WriterEngine.create(engine);
+    if (check == null) {
+      throw new IllegalArgumentException("Unknown engine " + engine);
+    }
+    if (companion && !check.setCompanionFile("companion.ome")) {
+      throw new IllegalArgumentException("Engine " + engine + " does not support companion files");
+    }
+    if (checksums && !check.storesMetadata()) {
+      throw new IllegalArgumentException("Engine " + engine + " does not store checksums");
+    }
+    extension = WriterEngine.extension(check);
+    keep = Boolean.parseBoolean(get("keep", "false"));
+    random = new Random(Long.parseLong(get("seed", "1")));
+  }
+
+  private String get(String key, String defaultValue) {
+    String value = options.get(key);
+    return value == null ? defaultValue : value;
+  }
+
+  /** Run plates until the time or plate limit is reached. */
+  public void run() throws InterruptedException, ExecutionException {
+
+    plane = createPlane();
+    descriptions = new String[rows * cols * fov];
+    for (int series = 0; series < descriptions.length; series++) {
+      descriptions[series] = "Load generator series " + series;
+    }
+
+    ArrayList<String> delays = null;
+    double[] exposureTimes = null;
+    if (gates > 1) {
+      delays = new ArrayList<>();
+      exposureTimes = new double[gates];
+      for (int t = 0; t < gates; t++) {
+        delays.add(Integer.toString(t * delayStep));
+        exposureTimes[t] = exposure;
+      }
+    }
+
+    long planeBytes = (long) width * height * FormatTools.getBytesPerPixel(pixelType);
+    long startHeap = heapAfterGC();
+    long start = System.nanoTime();
+    long totalPlanes = 0;
+    PlateResult closing = null;
+    PlateResult total = new PlateResult(0);
+
+    System.out.println("plate planes MB/s p50_us p99_us p999_us max_us heap_MB close_ms wait_ms finalize_ms");
+
+    int plateNo = 0;
+    while (System.nanoTime() - start < durationNanos && (maxPlates == 0 || plateNo < maxPlates)) {
+      PlateResult result = new PlateResult(plateNo);
+      String name = new File(dir, "loadgen_" + plateNo).getPath();
+
+      long plateStart = System.nanoTime();
+      if (writerType.equals("single")) {
+        runSingle(name, delays, exposureTimes, result);
+        result.plateNanos = System.nanoTime() - plateStart;
+        complete(result, total, planeBytes);
+      }
+      else {
+        FileWriteSPW writer = new FileWriteSPW(name + extension, "Load generator plate " + plateNo);
+        result.writer = writer;
+        result.files.add(name + extension);
+        result.files.add(DirectTiffEngine.getPlanesFile(name + extension));
+        if (companion) {
+          result.files.add(writer.getCompanionFile());
+        }
+        if (overview > 0) {
+          result.files.add(writer.getOverviewFile());
+        }
+        result.planes = runPlate(writer, delays, exposureTimes, result.latency);
+
+        // the previous plate finalizes while this one is acquired, but no more than one is queued
+        long waitStart = System.nanoTime();
+        if (closing != null) {
+          complete(closing, total, planeBytes);
+          closing = null;
+        }
+        result.waitNanos = System.nanoTime() - waitStart;
+
+        long closeStart = System.nanoTime();
+        if (background) {
+          result.pending = writer.cleanupInBackground();
+        }
+        else {
+          writer.cleanup();
+        }
+        result.closeNanos = System.nanoTime() - closeStart;
+        result.plateNanos = System.nanoTime() - plateStart;
+
+        if (background) {
+          closing = result;
+        }
+        else {
+          complete(result, total, planeBytes);
+        }
+      }
+      totalPlanes += result.planes;
+      plateNo++;
+    }
+    if (closing != null) {
+      complete(closing, total, planeBytes);
+    }
+
+    long elapsed = System.nanoTime() - start;
+    long endHeap = heapAfterGC();
+    System.out.println(String.format("total: %d plates %d planes in %.1f s, %.1f MB/s sustained",
+        plateNo, totalPlanes, elapsed / 1e9, totalPlanes * planeBytes / (elapsed / 1e9) / 1e6));
+    System.out.println(String.format("export latency us: p50 %d p99 %d p99.9 %d max %d",
+        runLatency.percentile(50) / 1000, runLatency.percentile(99) / 1000,
+        runLatency.percentile(99.9) / 1000, runLatency.max() / 1000));
+    System.out.println(String.format("heap growth after GC %.1f MB, max close %.1f ms, "
+        + "max wait %.1f ms, max finalize %.1f ms", (endHeap - startHeap) / 1e6,
+        total.closeNanos / 1e6, total.waitNanos / 1e6, total.finalizeNanos / 1e6));
+  }
+
+  /** Measurements of one plate, reported once it has finished closing. */
+  private static class PlateResult {
+    final int plateNo;
+    final LatencyHistogram latency = new LatencyHistogram();
+    final List<String> files = new ArrayList<>();
+    long planes = 0;
+    /** Time from the first plane to the return of cleanup, as seen by the acquisition. */
+    long plateNanos = 0;
+    /** Time spent in cleanup or cleanupInBackground on the acquisition thread. */
+    long closeNanos = 0;
+    /** Time blocked waiting for the previous plate to finish closing. */
+    long waitNanos = 0;
+    /** Time taken to actually finalize the plate, wherever that ran. */
+    long finalizeNanos = 0;
+    FileWriteSPW writer = null;
+    Future<Boolean> pending = null;
+
+    PlateResult(int plateNo) {
+      this.plateNo = plateNo;
+    }
+  }
+
+  /**
+   * Wait for a plate to finish closing, report it and delete its files unless they are kept.
+   * @param total  maximum close, wait and finalize times so far
+   */
+  private void complete(PlateResult result, PlateResult total, long planeBytes)
+      throws InterruptedException, ExecutionException {
+    if (result.pending != null && !result.pending.get()) {
+      System.err.println("Plate " + result.plateNo + " failed to close");
+    }
+    if (result.writer != null) {
+      result.finalizeNanos = result.writer.getCloseTime();
+    }
+    if (!keep) {
+      for (String file : result.files) {
+        new File(file).delete();
+      }
+    }
+
+    total.closeNanos = Math.max(total.closeNanos, result.closeNanos);
+    total.waitNanos = Math.max(total.waitNanos, result.waitNanos);
+    total.finalizeNanos = Math.max(total.finalizeNanos, result.finalizeNanos);
+    runLatency.add(result.latency);
+
+    LatencyHistogram latency = result.latency;
+    double mbs = result.planes * planeBytes / (result.plateNanos / 1e9) / 1e6;
+    System.out.println(String.format("%d %d %.1f %d %d %d %d %.1f %.1f %.1f %.1f",
+        result.plateNo, result.planes, mbs,
+        latency.percentile(50) / 1000, latency.percentile(99) / 1000,
+        latency.percentile(99.9) / 1000, latency.max() / 1000,
+        heapAtLastGC() / 1e6, result.closeNanos / 1e6, result.waitNanos / 1e6,
+        result.finalizeNanos / 1e6));
+  }
+
+  /**
+   * Write one plate with FileWriteSPW.
+   * @return no of planes written
+   */
+  private long runPlate(FileWriteSPW writer, ArrayList<String> delays, double[] exposureTimes,
+      LatencyHistogram latency) {
+
+    int[][] nFov = new int[rows][cols];
+    for (int row = 0; row < rows; row++) {
+      for (int column = 0; column < cols; column++) {
+        nFov[row][column] = fov;
+      }
+    }
+
+    writer.setPixelType(pixelType);
+    writer.setCompanionMode(companion);
+    writer.setChecksums(checksums);
+    writer.setSizeZ(sizez);
+    writer.setSizeC(sizec);
+    writer.setOverview(overview);
+    writer.setEngine(WriterEngine.create(engine));
+    boolean ok;
+    if (delays == null) {
+      ok = writer.init(nFov, width, height);
+    }
+    else {
+      ok = writer.init(nFov, width, height, delays, exposureTimes);
+    }
+    if (!ok) {
+      throw new IllegalStateException("Failed to initialise plate");
+    }
+
+    // no of planes written for each FOV, fewer than planeCount if it is dropped
+    int nImages = rows * cols * fov;
+    int planeCount = writer.getPlaneCount();
+    int[] planesToWrite = new int[nImages];
+    for (int i = 0; i < nImages; i++) {
+      planesToWrite[i] = random.nextDouble() < drop ? random.nextInt(planeCount) : planeCount;
+    }
+
+    long planes = 0;
+    if (pattern.equals("gate")) {
+      for (int well = 0; well < rows * cols; well++) {
+        for (int p = 0; p < planeCount; p++) {
+          for (int f = 0; f < fov; f++) {
+            int series = well * fov + f;
+            if (p < planesToWrite[series]) {
+              exportTimed(writer, series, p, latency);
+              planes++;
+            }
+          }
+        }
+      }
+    }
+    else {
+      List<Integer> order = new ArrayList<>();
+      for (int i = 0; i < nImages; i++) {
+        order.add(i);
+      }
+      if (pattern.equals("random")) {
+        Collections.shuffle(order, random);
+      }
+      for (int series : order) {
+        for (int p = 0; p < planesToWrite[series]; p++) {
+          exportTimed(writer, series, p, latency);
+          planes++;
+        }
+      }
+    }
+    return planes;
+  }
+
+  /**
+   * Write one plate's worth of FOVs with FileWrite, one file per FOV.
+   * Close times are summed over the files and recorded as both close and finalize time.
+   */
+  private void runSingle(String name, ArrayList<String> delays, double[] exposureTimes,
+      PlateResult result) {
+
+    int nImages = rows * cols * fov;
+    for (int i = 0; i < nImages; i++) {
+      String file = name + "_" + i + extension;
+      result.files.add(file);
+      result.files.add(DirectTiffEngine.getPlanesFile(file));
+      FileWrite writer = new FileWrite(file, "Load generator FOV " + i);
+      writer.setPixelType(pixelType);
+      writer.setChecksums(checksums);
+      writer.setSizeZ(sizez);
+      writer.setSizeC(sizec);
+      writer.setEngine(WriterEngine.create(engine));
+      boolean ok;
+      if (delays == null) {
+        ok = writer.init(width, height);
+      }
+      else {
+        ok = writer.init(width, height, gates, delays, exposureTimes);
+      }
+      if (!ok) {
+        throw new IllegalStateException("Failed to initialise file");
+      }
+      int planeCount = writer.getPlaneCount();
+      int planesToWrite = random.nextDouble() < drop ? random.nextInt(planeCount) : planeCount;
+      for (int p = 0; p < planesToWrite; p++) {
+        pace();
+        long begin = System.nanoTime();
+        exportPlane(writer, p);
+        result.latency.record(System.nanoTime() - begin);
+        result.planes++;
+      }
+      long closeStart = System.nanoTime();
+      writer.cleanup();
+      result.closeNanos += System.nanoTime() - closeStart;
+    }
+    result.finalizeNanos = result.closeNanos;
+  }
+
+  private void exportTimed(FileWriteSPW writer, int series, int index, LatencyHistogram latency) {
+    pace();
+    long begin = System.nanoTime();
+    exportPlane(writer, series, index);
+    latency.record(System.nanoTime() - begin);
+  }
+
+  private void exportPlane(FileWriteSPW writer, int series, int index) {
+    String description = descriptions[series];
+    switch (pixelType) {
+      case FormatTools.UINT8:
+        writer.export((byte[]) plane, series, index, description);
+        break;
+      case FormatTools.UINT32:
+        writer.export((int[]) plane, series, index, description);
+        break;
+      case FormatTools.FLOAT:
+        writer.export((float[]) plane, series, index, description);
+        break;
+      case FormatTools.DOUBLE:
+        writer.export((double[]) plane, series, index, description);
+        break;
+      default:
+        writer.export((short[]) plane, series, index, description);
+    }
+  }
+
+  private void exportPlane(FileWrite writer, int index) {
+    switch (pixelType) {
+      case FormatTools.UINT8:
+        writer.export((byte[]) plane, 0, index);
+        break;
+      case FormatTools.UINT32:
+        writer.export((int[]) plane, 0, index);
+        break;
+      case FormatTools.FLOAT:
+        writer.export((float[]) plane, 0, index);
+        break;
+      case FormatTools.DOUBLE:
+        writer.export((double[]) plane, 0, index);
+        break;
+      default:
+        writer.export((short[]) plane, 0, index);
+    }
+  }
+
+  /** Wait until the next frame is due when a frame rate is set. */
+  private void pace() {
+    if (fps <= 0) {
+      return;
+    }
+    long now = System.nanoTime();
+    if (nextFrame == 0 || now - nextFrame > 1000000000L) {
+      // first frame, or so far behind that catching up would be meaningless
+      nextFrame = now;
+    }
+    while (now < nextFrame) {
+      long wait = nextFrame - now;
+      if (wait > 2000000L) {
+        try {
+          Thread.sleep((wait - 1000000L) / 1000000L);
+        }
+        catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+      now = System.nanoTime();
+    }
+    nextFrame += (long) (1e9 / fps);
+  }
+
+  private Object createPlane() {
+    int n = width * height;
+    switch (pixelType) {
+      case FormatTools.UINT8: {
+        byte[] p = new byte[n];
+        random.nextBytes(p);
+        return p;
+      }
+      case FormatTools.UINT32: {
+        int[] p = new int[n];
+        for (int i = 0; i < n; i++) {
+          p[i] = random.nextInt(65536);
+        }
+        return p;
+      }
+      case FormatTools.FLOAT: {
+        float[] p = new float[n];
+        for (int i = 0; i < n; i++) {
+          p[i] = random.nextFloat() * 5000f;
+        }
+        return p;
+      }
+      case FormatTools.DOUBLE: {
+        double[] p = new double[n];
+        for (int i = 0; i < n; i++) {
+          p[i] = random.nextDouble() * 5000.0;
+        }
+        return p;
+      }
+      default: {
+        short[] p = new short[n];
+        for (int i = 0; i < n; i++) {
+          p[i] = (short) random.nextInt(4096);
+        }
+        return p;
+      }
+    }
+  }
+
+  /** Heap in use just after a full collection. */
+  private static long heapAfterGC() {
+    System.gc();
+    return heapAtLastGC();
+  }
+
+  /**
+   * Heap in use after the most recent collection, summed over the heap pools.
+   * Unlike the current usage this does not depend on how much garbage is waiting
+   * to be collected, so it grows steadily only if memory is leaking.
+   */
+  private static long heapAtLastGC() {
+    long used = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      MemoryUsage usage = pool.getCollectionUsage();
+      if (pool.getType() == MemoryType.HEAP && usage != null) {
+        used += usage.getUsed();
+      }
+    }
+    return used;
+  }
+
+  /**
+   * Fixed size log-linear histogram of latencies in ns, so that runs of many
+   * hours do not accumulate samples. Values are resolved to within 1/16 of
+   * their power of 2.
+   */
+  static class LatencyHistogram {
+
+    private static final int SUB_BUCKETS = 16;
+
+    private final long[] counts = new long[64 * SUB_BUCKETS];
+
+    private long total = 0;
+
+    private long max = 0;
+
+    void record(long nanos) {
+      if (nanos < 1) {
+        nanos = 1;
+      }
+      counts[bucket(nanos)]++;
+      total++;
+      max = Math.max(max, nanos);
+    }
+
+    void add(LatencyHistogram other) {
+      for (int i = 0; i < counts.length; i++) {
+        counts[i] += other.counts[i];
+      }
+      total += other.total;
+      max = Math.max(max, other.max);
+    }
+
+    long max() {
+      return max;
+    }
+
+    /** Upper bound of the bucket containing the given percentile. */
+    long percentile(double percentile) {
+      if (total == 0) {
+        return 0;
+      }
+      long rank = (long) Math.ceil(total * percentile / 100.0);
+      long seen = 0;
+      for (int i = 0; i < counts.length; i++) {
+        seen += counts[i];
+        if (seen >= rank) {
+          return Math.min(upperBound(i), max);
+        }
+      }
+      return max;
+    }
+
+    private static int bucket(long value) {
+      int exponent = 63 - Long.numberOfLeadingZeros(value);
+      if (exponent < 4) {
+        return (int) value;
+      }
+      int sub = (int) ((value >>> (exponent - 4)) & (SUB_BUCKETS - 1));
+      return exponent * SUB_BUCKETS + sub;
+    }
+
+    private static long upperBound(int bucket) {
+      int exponent = bucket / SUB_BUCKETS;
+      int sub = bucket % SUB_BUCKETS;
+      if (exponent < 4) {
+        return bucket;
+      }
+      return ((long) (SUB_BUCKETS + sub + 1) << (exponent - 4)) - 1;
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    Map<String, String> options = new HashMap<>();
+    for (String arg : args) {
+      int eq = arg.indexOf('=');
+      if (eq < 1) {
+        System.err.println("Arguments must be key=value, see SPW.LoadGenerator for options");
+        System.exit(2);
+      }
+      options.put(arg.substring(0, eq), arg.substring(eq + 1));
+    }
+    new LoadGenerator(options).run();
+  }
+
+}
@@ -0,0 +1,70 @@
+package SPW;
+
+/*
+ * #%L
+ * OME Bio-Formats package for reading and converting biological file formats.
+ * %%
+ * Copyright (C) 2005 - 2014 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+import loci.formats.meta.IMetadata;
+
+/**
+ * Engine that discards every plane and only counts them, so a run with it
+ * measures the overhead of the writers themselves.
+ */
+public class NullEngine implements WriterEngine {
+
+  private long planes = 0;
+
+  private long bytes = 0;
+
+  @Override
+  public void open(String outputFile, IMetadata meta) {
+    planes = 0;
+    bytes = 0;
+  }
+
+  @Override
+  public void submitPlane(int series, int index, byte[] plane) {
+    planes++;
+    bytes += plane.length;
+  }
+
+  @Override
+  public void flush() {
+  }
+
+  @Override
+  public void close() {
+  }
+
+  /** No of planes submitted since open. */
+  public long getPlaneCount() {
+    return planes;
+  }
+
+  /** No of bytes submitted since open. */
+  public long getByteCount() {
+    return bytes;
+  }
+
+}
@@ -0,0 +1,296 @@
+package SPW;
+
+/*
+ * #%L
+ * OME Bio-Formats package for reading and converting biological file formats.
+ * %%
+ * Copyright (C) 2005 - 2014 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+import loci.common.services.DependencyException;
+import loci.common.services.ServiceException;
+import loci.common.services.ServiceFactory;
+import loci.formats.FormatException;
+import loci.formats.FormatTools;
+import loci.formats.ImageWriter;
+import loci.formats.MetadataTools;
+import loci.formats.ome.OMEXMLMetadata;
+import loci.formats.services.OMEXMLService;
+
+import ome.xml.model.enums.DimensionOrder;
+import ome.xml.model.enums.EnumerationException;
+import ome.xml.model.enums.PixelType;
+import ome.xml.model.primitives.PositiveInteger;
+
+/**
+ * Downsampled whole-plate mosaic built from planes as they are written.
+ * Each well is a square grid of FOV tiles, laid out by row and column as
+ * in the plate. A tile holds the sum over all planes of its Image of the
+ * mean of each binning x binning block, so for FLIM it is the integrated
+ * intensity. The mosaic may be read from another thread at any time.
+ */
+public class PlateOverview {
+
+  /** Largest mosaic that can be saved, in pixels. */
+  public static final long MAX_PIXELS = Integer.MAX_VALUE / 4;
+
+  private final int pixelType;
+  private final int width;
+  private final int height;
+  private final int binning;
+
+  /** Size of one FOV tile. */
+  private final int tileWidth;
+  private final int tileHeight;
+
+  /** Size of the whole mosaic. */
+  private final int overviewWidth;
+  private final int overviewHeight;
+
+  /** Offset of the top-left pixel of each series' tile in the mosaic. */
+  private final int[] tileOffset;
+
+  /** Plane-sized pixel values reused for every plane. */
+  private final float[] values;
+
+  /** Tile-sized accumulator reused for every plane. */
+  private final float[] binned;
+
+  /** Tile x for each column of a plane. */
+  private final int[] xBin;
+
+  /** No of plane pixels contributing to each tile pixel. */
+  private final float[] binCount;
+
+  /** Mosaic pixels, guarded by this. */
+  private final float[] pixels;
+
+  /**
+   * Lay out the mosaic for a plate.
+   * @param nFov  no of FOVs in each well, indexed [row][column]
+   * @param width  plane width
+   * @param height  plane height
+   * @param pixelType  pixel type of the planes
+   * @param binning  downsampling factor in x and y
+   * @throws IllegalArgumentException if the mosaic would exceed MAX_PIXELS
+   */
+  public PlateOverview(int[][] nFov, int width, int height, int pixelType, int binning) {
+    this.width = width;
+    this.height = height;
+    this.pixelType = pixelType;
+    this.binning = binning;
+    tileWidth = (width + binning - 1) / binning;
+    tileHeight = (height + binning - 1) / binning;
+
+    int rows = nFov.length;
+    int cols = nFov[0].length;
+    int maxFov = 1;
+    int nSeries = 0;
+    for (int row = 0; row < rows; row++) {
+      for (int column = 0; column < cols; column++) {
+        maxFov = Math.max(maxFov, nFov[row][column]);
+        nSeries += nFov[row][column];
+      }
+    }
+    int side = (int) Math.ceil(Math.sqrt(maxFov));
+    long mosaicWidth = (long) cols * side * tileWidth;
+    long mosaicHeight = (long) rows * side * tileHeight;
+    // saved as a single FLOAT plane, so its bytes must fit in one array
+    if (mosaicWidth * mosaicHeight > MAX_PIXELS) {
+      throw new IllegalArgumentException("Plate overview of " + mosaicWidth + " x " + mosaicHeight
+          + " pixels is too large, increase the binning");
+    }
+    overviewWidth = (int) mosaicWidth;
+    overviewHeight = (int) mosaicHeight;
+    pixels = new float[overviewWidth * overviewHeight];
+
+    // series are numbered well by well in row-major order as in initializeMetadata
+    tileOffset = new int[nSeries];
+    int series = 0;
+    for (int row = 0; row < rows; row++) {
+      for (int column = 0; column < cols; column++) {
+        for (int fov = 0; fov < nFov[row][column]; fov++) {
+          int x = (column * side + fov % side) * tileWidth;
+          int y = (row * side + fov / side) * tileHeight;
+          tileOffset[series++] = y * overviewWidth + x;
+        }
+      }
+    }
+
+    values = new float[width * height];
+    binned = new float[tileWidth * tileHeight];
+    xBin = new int[width];
+    for (int x = 0; x < width; x++) {
+      xBin[x] = x / binning;
+    }
+    binCount = new float[tileWidth * tileHeight];
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        binCount[(y / binning) * tileWidth + xBin[x]]++;
+      }
+    }
+  }
+
+  /**
+   * Add a plane to the tile of its Image.
+   * @param series  image no in plate
+   * @param plane  big-endian pixel data as written to file
+   */
+  public void update(int series, byte[] plane) {
+    toFloat(plane);
+    Arrays.fill(binned, 0f);
+    int i = 0;
+    for (int y = 0; y < height; y++) {
+      int rowOffset = (y / binning) * tileWidth;
+      for (int x = 0; x < width; x++, i++) {
+        binned[rowOffset + xBin[x]] += values[i];
+      }
+    }
+
+    synchronized (this) {
+      int offset = tileOffset[series];
+      for (int ty = 0; ty < tileHeight; ty++) {
+        for (int tx = 0; tx < tileWidth; tx++) {
+          int b = ty * tileWidth + tx;
+          pixels[offset + ty * overviewWidth + tx] += binned[b] / binCount[b];
+        }
+      }
+    }
+  }
+
+  /** Convert a plane into values, choosing the pixel type once rather than per pixel. */
+  private void toFloat(byte[] plane) {
+    ByteBuffer buffer = ByteBuffer.wrap(plane);
+    int n = values.length;
+    switch (pixelType) {
+      case FormatTools.UINT8:
+        for (int i = 0; i < n; i++) {
+          values[i] = plane[i] & 0xff;
+        }
+        break;
+      case FormatTools.UINT16:
+        ShortBuffer shorts = buffer.asShortBuffer();
+        for (int i = 0; i < n; i++) {
+          values[i] = shorts.get(i) & 0xffff;
+        }
+        break;
+      case FormatTools.UINT32:
+        IntBuffer ints = buffer.asIntBuffer();
+        for (int i = 0; i < n; i++) {
+          values[i] = ints.get(i) & 0xffffffffL;
+        }
+        break;
+      case FormatTools.FLOAT:
+        buffer.asFloatBuffer().get(values);
+        break;
+      default:
+        DoubleBuffer doubles = buffer.asDoubleBuffer();
+        for (int i = 0; i < n; i++) {
+          values[i] = (float) doubles.get(i);
+        }
+    }
+  }
+
+  public int getWidth() {
+    return overviewWidth;
+  }
+
+  public int getHeight() {
+    return overviewHeight;
+  }
+
+  /**
+   * Current state of the mosaic.
+   * @return copy of the pixels, row by row
+   */
+  public synchronized float[] getPixels() {
+    return pixels.clone();
+  }
+
+  /**
+   * Save the mosaic as a single FLOAT plane.
+   * @param outputFile  file to write, any format supported by ImageWriter
+   * @return true if the file was written
+   */
+  public boolean save(String outputFile) {
+    File file = new File(outputFile);
+    if (file.exists()) {
+      file.delete();
+    }
+
+    Exception exception = null;
+    ImageWriter writer = new ImageWriter();
+    try {
+      ServiceFactory factory = new ServiceFactory();
+      OMEXMLService service = factory.getInstance(OMEXMLService.class);
+      OMEXMLMetadata meta = service.createOMEXMLMetadata();
+      meta.createRoot();
+      meta.setImageID(MetadataTools.createLSID("Image", 0), 0);
+      meta.setImageName("Plate overview", 0);
+      meta.setPixelsID(MetadataTools.createLSID("Pixels", 0), 0);
+      meta.setPixelsBigEndian(Boolean.TRUE, 0);
+      meta.setPixelsDimensionOrder(DimensionOrder.XYZCT, 0);
+      meta.setPixelsType(PixelType.fromString(FormatTools.getPixelTypeString(FormatTools.FLOAT)), 0);
+      meta.setPixelsSizeX(new PositiveInteger(overviewWidth), 0);
+      meta.setPixelsSizeY(new PositiveInteger(overviewHeight), 0);
+      meta.setPixelsSizeZ(new PositiveInteger(1), 0);
+      meta.setPixelsSizeC(new PositiveInteger(1), 0);
+      meta.setPixelsSizeT(new PositiveInteger(1), 0);
+      meta.setChannelID(MetadataTools.createLSID("Channel", 0, 0), 0, 0);
+      meta.setChannelSamplesPerPixel(new PositiveInteger(1), 0, 0);
+
+      // convert a snapshot straight into the output buffer rather than copying the mosaic first
+      ByteBuffer plane = ByteBuffer.allocate(overviewWidth * overviewHeight * 4);
+      synchronized (this) {
+        plane.asFloatBuffer().put(pixels);
+      }
+
+      writer.setMetadataRetrieve(meta);
+      writer.setId(outputFile);
+      writer.saveBytes(0, plane.array());
+    }
+    catch (DependencyException | ServiceException | EnumerationException
+        | FormatException | IOException e) {
+      exception = e;
+    }
+    finally {
+      try {
+        writer.close();
+      }
+      catch (IOException e) {
+        exception = e;
+      }
+    }
+    if (exception != null) {
+      System.err.println("Failed to save plate overview.");
+    }
+    return exception == null;
+  }
+
+}
@@ -0,0 +1,115 @@
+package SPW;
+
+/*
+ * #%L
+ * OME Bio-Formats package for reading and converting biological file formats.
+ * %%
+ * Copyright (C) 2005 - 2014 Open Microscopy Environment:
+ *   - Board of Regents of the University of Wisconsin-Madison
+ *   - Glencoe Software, Inc.
+ *   - University of Dundee
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as
+ * published by the Free Software Foundation, either version 2 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/gpl-2.0.html>.
+ * #L%
+ */
+
+import java.io.IOException;
+
+import loci.formats.FormatException;
+import loci.formats.meta.IMetadata;
+
+/**
+ * Engine that FileWrite and FileWriteSPW hand their planes to.
+ * The writers own the metadata and the plane layout; an engine only has to
+ * store planes. Engines are used from one thread at a time.
+ */
+public interface WriterEngine {
+
+  /**
+   * Open the output file.
+   * @param outputFile  file to write
+   * @param meta  metadata describing every Image. The writer may still change
+   *   it, e.g. to remove invalid Images, until close is called.
+   */
+  void open(String outputFile, IMetadata meta) throws FormatException, IOException;
+
+  /**
+   * Store a plane. The caller may reuse plane as soon as this returns.
+   * @param series  image no
+   * @param index  plane within image
+   * @param plane  big-endian pixel data
+   */
+  void submitPlane(int series, int index, byte[] plane) throws FormatException, IOException;
+
+  /**
+   * Wait until every submitted plane has been stored.
+   * Must be called before the metadata is changed structurally.
+   */
+  void flush() throws FormatException, IOException;
+
+  /** Store the final metadata and close the output file. */
+  void close() throws IOException;
+
+  /**
+   * Write the full OME-XML to a companion file instead of the output file.
+   * Must be called before open.
+   * @param companionFile  companion file name, or null to store the OME-XML in the output file
+   * @return false if the engine cannot write a companion file
+   */
+  default boolean setCompanionFile(String companionFile) {
+    return companionFile == null;
+  }
+
+  /**
+   * Whether the metadata passed to open is stored, and with it any annotations
+   * such as checksums added before close.
+   * @return true if the OME-XML is written
+   */
+  default boolean storesMetadata() {
+    return false;
+  }
+
+  /**
+   * File extension for an engine's output. Engines that store no OME-XML must
+   * not use .ome.tif, or the file would be read back as an OME-TIFF.
+   * @return .ome.tif if the engine stores metadata, otherwise .tif
+   */
+  static String extension(WriterEngine engine) {
+    return engine.storesMetadata() ? ".ome.tif" : ".tif";
+  }
+
+  /**
+   * Create an engine by name.
+   * @param name  bioformats, tiff, null, or async: followed by one of these
+   * @return the engine or null if the name is not recognised
+   */
+  static WriterEngine create(String name) {
+    if (name.startsWith("async:")) {
+      WriterEngine target = create(name.substring("async:".length()));
+      return target == null ? null : new AsyncEngine(target, AsyncEngine.DEFAULT_CAPACITY);
+    }
+    switch (name) {
+      case "bioformats":
+        return new BioFormatsEngine();
+      case "tiff":
+        return new DirectTiffEngine();
+      case "null":
+        return new NullEngine();
+      default:
+        return null;
+    }
+  }
+
+}